@@ -18,7 +18,11 @@ package org.adw.launcher2;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
+import org.adw.launcher2.settings.DrawerComparator;
 import org.adw.launcher2.settings.Preferences;
 
 import android.content.ComponentName;
@@ -29,6 +33,7 @@ import android.graphics.Color;
 import android.graphics.drawable.BitmapDrawable;
 import android.util.AttributeSet;
 import android.util.Log;
+import android.util.SparseArray;
 import android.view.KeyEvent;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -53,6 +58,9 @@ public class AllApps2D
     private static final String TAG = "Launcher.AllApps2D";
     private static final boolean DEBUG = false;
 
+    // Stored icons are fetched from the AppDB this many at a time
+    private static final int ICON_PAGE_SIZE = 32;
+
     private Launcher mLauncher;
     private DragController mDragController;
 
@@ -83,12 +91,26 @@ public class AllApps2D
 
     public class AppsAdapter extends ArrayAdapter<IconItemInfo> {
         private final LayoutInflater mInflater;
+        // what the views are waiting for, kept per view so rebinding doesn't allocate
+        private final HashMap<View, PendingBind> mPending = new HashMap<View, PendingBind>();
+        // icon pages being loaded, by page number
+        private final SparseArray<IconLoader.Request> mPages = new SparseArray<IconLoader.Request>();
 
         public AppsAdapter(Context context, ArrayList<IconItemInfo> apps) {
             super(context, 0, apps);
             mInflater = LayoutInflater.from(context);
         }
 
+        @Override
+        public void notifyDataSetChanged() {
+            // the pages don't hold the same items anymore, visible views get rebound anyway
+            for (int i = 0; i < mPages.size(); i++) {
+                mPages.valueAt(i).cancel();
+            }
+            mPages.clear();
+            super.notifyDataSetChanged();
+        }
+
         @Override
         public View getView(int position, View convertView, ViewGroup parent) {
             final IconItemInfo info = getItem(position);
@@ -103,6 +125,103 @@ public class AllApps2D
 //            }
 
             final TextView textView = (TextView) convertView;
+            PendingBind pending = mPending.get(textView);
+            if (pending != null && pending.info != null) {
+                // recycled, whatever it was waiting for is of no use anymore
+                pending.info = null;
+                releasePage(pending.page);
+            }
+
+            final IconCache iconCache = mLauncher.getIconCache();
+            if (!info.needsIconLoad(iconCache)) {
+                bindIcon(textView, info);
+                return convertView;
+            }
+
+            final int page = position / ICON_PAGE_SIZE;
+            if (mPages.get(page) == null) {
+                final PageCallback callback = new PageCallback(page);
+                callback.mRequest = mLauncher.getIconLoader().loadPage(getPage(position),
+                        mLauncher.getAppDB(), callback);
+                if (callback.mRequest == null) {
+                    bindIcon(textView, info);
+                    return convertView;
+                }
+                mPages.put(page, callback.mRequest);
+            }
+
+            if (pending == null) {
+                pending = new PendingBind();
+                mPending.put(textView, pending);
+            }
+            pending.info = info;
+            pending.page = page;
+
+            // only the icon is deferred, the title is cached already
+            Bitmap placeholder = iconCache.getDefaultIcon();
+            placeholder.setDensity(Bitmap.DENSITY_NONE);
+            textView.setCompoundDrawablesWithIntrinsicBounds(null,
+                    new BitmapDrawable(placeholder), null, null);
+            textView.setText(info.getTitle(iconCache));
+
+            return convertView;
+        }
+
+        /**
+         * Cancel the load of the page if no view waits for it anymore.
+         */
+        private void releasePage(int page) {
+            for (PendingBind pending : mPending.values()) {
+                if (pending.info != null && pending.page == page)
+                    return;
+            }
+            final IconLoader.Request request = mPages.get(page);
+            if (request != null) {
+                request.cancel();
+                mPages.remove(page);
+            }
+        }
+
+        private void pageLoaded(int page) {
+            for (Map.Entry<View, PendingBind> e : mPending.entrySet()) {
+                final PendingBind pending = e.getValue();
+                if (pending.info != null && pending.page == page) {
+                    bindIcon((TextView) e.getKey(), pending.info);
+                    pending.info = null;
+                }
+            }
+        }
+
+        /**
+         * The items of the icon page holding the position.
+         */
+        private List<IconItemInfo> getPage(int position) {
+            final int start = position - position % ICON_PAGE_SIZE;
+            final int end = Math.min(start + ICON_PAGE_SIZE, getCount());
+            final ArrayList<IconItemInfo> page = new ArrayList<IconItemInfo>(end - start);
+            for (int i = start; i < end; i++) {
+                page.add(getItem(i));
+            }
+            return page;
+        }
+
+        private class PageCallback implements IconLoader.Callback {
+            private final int mPage;
+            IconLoader.Request mRequest;
+
+            PageCallback(int page) {
+                mPage = page;
+            }
+
+            public void onIconLoaded(Bitmap icon) {
+                if (mPages.get(mPage) == mRequest) {
+                    mPages.remove(mPage);
+                    pageLoaded(mPage);
+                }
+            }
+        }
+
+        private void bindIcon(TextView textView, IconItemInfo info) {
             Bitmap icon = info.getIcon(mLauncher.getIconCache());
             if (DEBUG) {
                 Log.d(TAG, "icon bitmap = " + icon
@@ -111,11 +230,17 @@ public class AllApps2D
             icon.setDensity(Bitmap.DENSITY_NONE);
             textView.setCompoundDrawablesWithIntrinsicBounds(null, new BitmapDrawable(icon), null, null);
             textView.setText(info.getTitle(mLauncher.getIconCache()));
-
-            return convertView;
         }
     }
 
+    /**
+     * The item a view shows a placeholder for, info is null once it stopped waiting.
+     */
+    private static final class PendingBind {
+        IconItemInfo info;
+        int page;
+    }
+
     public AllApps2D(Context context, AttributeSet attrs) {
         super(context, attrs);
         setVisibility(View.GONE);
@@ -280,10 +405,12 @@ public class AllApps2D
 //        Log.d(TAG, "addApps: " + list.size() + " apps: " + list.toString());
 
         final int N = list.size();
+        final DrawerComparator<?> comparator = Preferences.getInstance().getCurrentDrawerComparator();
+        comparator.prepare(list);
 
         for (int i=0; i<N; i++) {
             final IconItemInfo item = list.get(i);
-            int index = Collections.binarySearch(mAllAppsList, item, Preferences.getInstance().getCurrentDrawerComparator());
+            int index = Collections.binarySearch(mAllAppsList, item, comparator);
             if (index < 0) {
                 index = -(index+1);
             }
@@ -293,7 +420,9 @@ public class AllApps2D
     }
 
     public void sort() {
-    	Collections.sort(mAllAppsList, Preferences.getInstance().getCurrentDrawerComparator());
+    	final DrawerComparator<?> comparator = Preferences.getInstance().getCurrentDrawerComparator();
+    	comparator.prepare(mAllAppsList);
+    	Collections.sort(mAllAppsList, comparator);
     	mAppsAdapter.notifyDataSetChanged();
     }
 
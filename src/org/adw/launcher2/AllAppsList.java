@@ -97,8 +97,7 @@ class AllAppsList {
 	            }
         	}
         }
-        // This is more aggressive than it needs to be.
-        mIconCache.flush();
+        mIconCache.removePackage(packageName);
     }
 
     /**
@@ -117,12 +116,19 @@ class AllAppsList {
 	            }
         	}
         }
-        // This is more aggressive than it needs to be.
-        mIconCache.flush();
+        final ArrayList<ComponentName> components =
+                new ArrayList<ComponentName>(componentNames.length);
+        for (String cname : componentNames) {
+            final ComponentName component = ComponentName.unflattenFromString(cname);
+            if (component != null)
+                components.add(component);
+        }
+        mIconCache.removeComponents(components);
     }
 
     /**
-     * Add and remove icons for this package which has been updated.
+     * Add and remove icons for this package which has been updated.  Apps we don't
+     * have yet are added.
      */
     public void updateFromShortcuts(List<ShortcutInfo> changedItems) {
     	for(ShortcutInfo updated : changedItems) {
@@ -132,6 +138,9 @@ class AllAppsList {
     				ShortcutInfo oldEntry = findActivity(data, name);
     				if (oldEntry != null) {
     					modified.add(oldEntry);
+    				} else {
+    					// e.g. back from an unmounted sd card
+    					add(updated);
     				}
     			}
     		}
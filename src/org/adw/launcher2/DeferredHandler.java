@@ -81,6 +81,16 @@ public class DeferredHandler {
         }
     }
 
+    /** Schedule runnable to run before everything that's on the queue right now. */
+    public void postAtFrontOfQueue(Runnable runnable) {
+        synchronized (mQueue) {
+            mQueue.addFirst(runnable);
+            if (mQueue.size() == 1) {
+                scheduleNextLocked();
+            }
+        }
+    }
+
     /** Schedule runnable to run when the queue goes idle. */
     public void postIdle(final Runnable runnable) {
         post(new IdleRunnable(runnable));
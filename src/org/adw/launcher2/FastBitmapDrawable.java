@@ -23,6 +23,7 @@ import android.graphics.Canvas;
 import android.graphics.ColorFilter;
 
 class FastBitmapDrawable extends Drawable {
+    private final State mState = new State();
     private Bitmap mBitmap;
     private int mWidth;
     private int mHeight;
@@ -88,4 +89,24 @@ class FastBitmapDrawable extends Drawable {
     public Bitmap getBitmap() {
         return mBitmap;
     }
+
+    /**
+     * Copies share the bitmap, but not the bounds or the callback.
+     */
+    @Override
+    public ConstantState getConstantState() {
+        return mState;
+    }
+
+    private final class State extends ConstantState {
+        @Override
+        public Drawable newDrawable() {
+            return new FastBitmapDrawable(mBitmap);
+        }
+
+        @Override
+        public int getChangingConfigurations() {
+            return 0;
+        }
+    }
 }
@@ -16,7 +16,16 @@
 
 package org.adw.launcher2;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import android.content.ComponentName;
 import android.content.Context;
@@ -26,29 +35,125 @@ import android.content.pm.ResolveInfo;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.drawable.Drawable;
+import android.os.Looper;
 
 /**
  * Cache of application icons.  Icons can be made from any thread.
+ *
+ * The cache is a least recently used map bounded by the number of bytes held in
+ * the icon bitmaps.  Entries that are pinned (e.g. items visible on the workspace)
+ * are never evicted and don't count against the budget.  Eviction only drops the
+ * icon, the title stays cached since it may be a customized one from the AppDB.
+ *
+ * Lookups of cached entries never take a lock.  A miss is resolved by the calling
+ * thread outside of any shared lock; other threads missing the same component wait
+ * for that result instead of loading it again.
+ *
+ * Cached components are indexed by package so an uninstall or update only evicts the
+ * entries of the affected package.
  */
 public class IconCache {
 
     private static final int INITIAL_ICON_CACHE_CAPACITY = 50;
 
+    /** Default budget as a fraction of the maximum heap (1/8). */
+    private static final int DEFAULT_HEAP_FRACTION = 8;
+
+    /** Once over budget, trim this fraction below it so we don't evict on every insert. */
+    private static final int TRIM_FRACTION = 8;
+
     private static class CacheEntry {
-        public Bitmap icon;
-        public String title;
+        final Bitmap icon;
+        final String title;
+        final int size;
+        volatile long lastAccess;
+
+        CacheEntry(String title, Bitmap icon) {
+            this.title = title;
+            this.icon = icon;
+            this.size = sizeOf(icon);
+        }
+
+        boolean isComplete() {
+            return icon != null && title != null;
+        }
+    }
+
+    /**
+     * Placed for a component while one thread loads it, others wait on it.
+     */
+    private static class LoadingMarker {
+        private boolean mDone;
+        private CacheEntry mEntry;
+
+        synchronized void done(CacheEntry entry) {
+            if (!mDone) {
+                mEntry = entry;
+                mDone = true;
+                notifyAll();
+            }
+        }
+
+        synchronized CacheEntry await() {
+            while (!mDone) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+            }
+            return mEntry;
+        }
     }
 
+    private static final Comparator<Map.Entry<ComponentName, CacheEntry>> LRU_ORDER =
+            new Comparator<Map.Entry<ComponentName, CacheEntry>>() {
+        public int compare(Map.Entry<ComponentName, CacheEntry> a,
+                Map.Entry<ComponentName, CacheEntry> b) {
+            final long la = a.getValue().lastAccess;
+            final long lb = b.getValue().lastAccess;
+            return la < lb ? -1 : (la == lb ? 0 : 1);
+        }
+    };
+
     private final Bitmap mDefaultIcon;
     private final Context mContext;
     private final PackageManager mPackageManager;
-    private final HashMap<ComponentName, CacheEntry> mCache =
-            new HashMap<ComponentName, CacheEntry>(INITIAL_ICON_CACHE_CAPACITY);
+    private final ConcurrentHashMap<ComponentName, CacheEntry> mCache =
+            new ConcurrentHashMap<ComponentName, CacheEntry>(INITIAL_ICON_CACHE_CAPACITY);
+    private final ConcurrentHashMap<ComponentName, LoadingMarker> mLoading =
+            new ConcurrentHashMap<ComponentName, LoadingMarker>();
+    private final IconDiskCache mDiskCache;
+
+    private final AtomicLong mClock = new AtomicLong();
+    private final AtomicInteger mHitCount = new AtomicInteger();
+    private final AtomicInteger mMissCount = new AtomicInteger();
+    private final AtomicInteger mEvictionCount = new AtomicInteger();
+
+    // Writers only, all guarded by mLock
+    private final Object mLock = new Object();
+    // pin count per component, several shortcuts may point to the same one
+    private final HashMap<ComponentName, Integer> mPinned = new HashMap<ComponentName, Integer>();
+    private final HashMap<String, HashSet<ComponentName>> mPackages =
+            new HashMap<String, HashSet<ComponentName>>();
+    private int mMaxSize;
+    private int mSize;
+    private int mGeneration;
 
     public IconCache(Context context) {
+        this(context, (int) (Runtime.getRuntime().maxMemory() / DEFAULT_HEAP_FRACTION));
+    }
+
+    /**
+     * @param maxSize the maximum number of bytes of unpinned icon bitmaps to keep.
+     */
+    public IconCache(Context context, int maxSize) {
         mContext = context;
         mPackageManager = context.getPackageManager();
         mDefaultIcon = makeDefaultIcon();
+        mMaxSize = maxSize;
+        mDiskCache = new IconDiskCache(context);
     }
 
     public Bitmap getDefaultIcon() {
@@ -74,120 +179,423 @@ public class IconCache {
      * Remove any records for the supplied ComponentName.
      */
     public void remove(ComponentName componentName) {
-        synchronized (mCache) {
-        	if (componentName != null)
-        		mCache.remove(componentName);
+    	if (componentName == null)
+    		return;
+        synchronized (mLock) {
+            mGeneration++;
+            evictLocked(componentName);
+            mPinned.remove(componentName);
         }
+        mDiskCache.remove(componentName);
     }
 
     /**
-     * Empty out the cache.
+     * Drop the supplied ComponentName from memory only, e.g. while its package is on
+     * unmounted storage.  The icon on disk stays for when it comes back, and so do pins.
      */
-    public void flush() {
-        synchronized (mCache) {
-            mCache.clear();
+    public void evict(ComponentName componentName) {
+        if (componentName == null)
+            return;
+        synchronized (mLock) {
+            mGeneration++;
+            evictLocked(componentName);
         }
     }
 
-    public void addToCache(ComponentName componentName, String title, Bitmap icon) {
-        CacheEntry entry = mCache.get(componentName);
-        if (entry == null) {
-            entry = new CacheEntry();
+    /**
+     * Remove the records of all components of the package, e.g. after it was updated
+     * or uninstalled.  Pinned components stay pinned.
+     */
+    public void removePackage(String packageName) {
+        if (packageName == null)
+            return;
+        synchronized (mLock) {
+            mGeneration++;
+            final HashSet<ComponentName> components = mPackages.remove(packageName);
+            if (components != null) {
+                for (ComponentName component : components) {
+                    final CacheEntry entry = mCache.remove(component);
+                    if (entry != null && !mPinned.containsKey(component))
+                        mSize -= entry.size;
+                }
+            }
         }
-        mCache.put(componentName, entry);
-
-        entry.title = title;
-        entry.icon = icon;
+        mDiskCache.invalidatePackage(packageName);
     }
 
-    public Bitmap getIcon(Intent intent) {
-        synchronized (mCache) {
-            ComponentName component = intent.getComponent();
-            CacheEntry entry = mCache.get(component);
-            if (component == null || entry == null || entry.icon == null) {
-            	final ResolveInfo resolveInfo = mPackageManager.resolveActivity(intent, 0);
+    /**
+     * Remove the records of the supplied components.  Pinned components stay pinned.
+     */
+    public void removeComponents(List<ComponentName> components) {
+        synchronized (mLock) {
+            mGeneration++;
+            for (ComponentName component : components) {
+                evictLocked(component);
+            }
+        }
+        for (ComponentName component : components) {
+            mDiskCache.invalidatePackage(component.getPackageName());
+        }
+    }
 
-	            if (resolveInfo == null || component == null) {
-	                return mDefaultIcon;
-	            }
+    /**
+     * Empty out the cache. Icons of unchanged packages are restored from disk.
+     */
+    public void flush() {
+        synchronized (mLock) {
+            mGeneration++;
+            mCache.clear();
+            mPackages.clear();
+            mSize = 0;
+        }
+        mDiskCache.invalidateAll();
+    }
 
-	            return cacheLocked(component, resolveInfo).icon;
-            } else {
-	            return entry.icon;
+    /**
+     * Keep the entry for the supplied ComponentName regardless of the cache budget.
+     * Every pin has to be matched by an {@link #unpin(ComponentName)}.
+     */
+    public void pin(ComponentName componentName) {
+        if (componentName == null)
+            return;
+        synchronized (mLock) {
+            final Integer count = mPinned.get(componentName);
+            mPinned.put(componentName, count != null ? count + 1 : 1);
+            if (count == null) {
+                CacheEntry entry = mCache.get(componentName);
+                if (entry != null)
+                    mSize -= entry.size;
             }
         }
     }
 
-    public Bitmap getIcon(ComponentName component, ResolveInfo resolveInfo) {
-        synchronized (mCache) {
-            CacheEntry entry = mCache.get(component);
-            if (component == null ||entry == null || entry.icon == null) {
-	            if (resolveInfo == null || component == null) {
-	                return mDefaultIcon;
-	            }
-	            return cacheLocked(component, resolveInfo).icon;
-            } else {
-	            return entry.icon;
+    /**
+     * Let the entry for the supplied ComponentName be evicted again once all of its
+     * pins are released.
+     */
+    public void unpin(ComponentName componentName) {
+        if (componentName == null)
+            return;
+        synchronized (mLock) {
+            final Integer count = mPinned.get(componentName);
+            if (count == null)
+                return;
+            if (count > 1) {
+                mPinned.put(componentName, count - 1);
+                return;
+            }
+            mPinned.remove(componentName);
+            CacheEntry entry = mCache.get(componentName);
+            if (entry != null) {
+                mSize += entry.size;
+                trimToSizeLocked(mMaxSize);
             }
         }
     }
 
-    public CharSequence getTitle(Intent intent) {
-        synchronized (mCache) {
-            ComponentName component = intent.getComponent();
-            CacheEntry entry = mCache.get(component);
-            if (component == null || entry == null || entry.title == null ) {
-            	final ResolveInfo resolveInfo = mPackageManager.resolveActivity(intent, 0);
+    /**
+     * Change the maximum number of bytes of unpinned icons kept in the cache.
+     */
+    public void setMaxSize(int maxSize) {
+        synchronized (mLock) {
+            mMaxSize = maxSize;
+            trimToSizeLocked(maxSize);
+        }
+    }
 
-	            if (resolveInfo == null || component == null) {
-	                return component.getClassName();
-	            }
+    public int getMaxSize() {
+        synchronized (mLock) {
+            return mMaxSize;
+        }
+    }
 
-	            return cacheLocked(component, resolveInfo).title;
-            } else {
-	            return entry.title;
-            }
+    /**
+     * @return the number of bytes held by unpinned icons.
+     */
+    public int getSize() {
+        synchronized (mLock) {
+            return mSize;
         }
     }
 
-    public CharSequence getTitle(ComponentName component, ResolveInfo resolveInfo) {
-        synchronized (mCache) {
-            CacheEntry entry = mCache.get(component);
-            if (component == null || entry == null || entry.title == null) {
-	            if (resolveInfo == null || component == null) {
-	                return component.getClassName();
-	            }
-	            return cacheLocked(component, resolveInfo).title;
-            } else {
-	            return entry.title;
+    public int getHitCount() {
+        return mHitCount.get();
+    }
+
+    public int getMissCount() {
+        return mMissCount.get();
+    }
+
+    public int getEvictionCount() {
+        return mEvictionCount.get();
+    }
+
+    @Override
+    public String toString() {
+        synchronized (mLock) {
+            return "IconCache(size=" + mSize + " maxSize=" + mMaxSize + " entries=" + mCache.size()
+                    + " pinned=" + mPinned.size() + " hits=" + mHitCount + " misses=" + mMissCount
+                    + " evictions=" + mEvictionCount + ")";
+        }
+    }
+
+    /**
+     * Either title or icon may be null, the cached one is kept then.
+     */
+    public void addToCache(ComponentName componentName, String title, Bitmap icon) {
+        synchronized (mLock) {
+            final CacheEntry old = mCache.get(componentName);
+            if (old != null) {
+                if (title == null)
+                    title = old.title;
+                if (icon == null)
+                    icon = old.icon;
             }
+            final CacheEntry entry = new CacheEntry(title, icon);
+            entry.lastAccess = mClock.incrementAndGet();
+            putLocked(componentName, entry);
         }
     }
 
+    /**
+     * The package was installed or updated, icons on disk are checked against its new
+     * version on the next lookup.  Call from the package change paths only.
+     */
+    public void invalidatePackage(String packageName) {
+        if (packageName != null)
+            mDiskCache.invalidatePackage(packageName);
+    }
+
+    public Bitmap getIcon(Intent intent) {
+        final CacheEntry entry = getEntry(intent.getComponent(), null, intent);
+        return entry != null ? entry.icon : mDefaultIcon;
+    }
+
+    public Bitmap getIcon(ComponentName component, ResolveInfo resolveInfo) {
+        final CacheEntry entry = getEntry(component, resolveInfo, null);
+        return entry != null ? entry.icon : mDefaultIcon;
+    }
+
+    /**
+     * On the UI thread a title that isn't cached yet isn't loaded and null is returned,
+     * the {@link IconLoader} fills it in then.  Elsewhere null means the component can't
+     * be resolved.
+     */
+    public CharSequence getTitle(Intent intent) {
+        final ComponentName component = intent.getComponent();
+        final String title = getCachedTitle(component);
+        if (title != null)
+            return title;
+        final CacheEntry entry = isUiThread() ? null : getEntry(component, null, intent);
+        return entry != null ? entry.title : null;
+    }
+
+    /**
+     * See {@link #getTitle(Intent)}.
+     */
+    public CharSequence getTitle(ComponentName component, ResolveInfo resolveInfo) {
+        final String title = getCachedTitle(component);
+        if (title != null)
+            return title;
+        final CacheEntry entry = isUiThread() ? null : getEntry(component, resolveInfo, null);
+        return entry != null ? entry.title : null;
+    }
+
+    /**
+     * The title may be cached before the icon, e.g. for apps whose icons are still in
+     * the AppDB.  No need to load the icon for it then.
+     */
+    private String getCachedTitle(ComponentName component) {
+        if (component == null)
+            return null;
+        final CacheEntry entry = mCache.get(component);
+        if (entry == null || entry.title == null)
+            return null;
+        entry.lastAccess = mClock.incrementAndGet();
+        return entry.title;
+    }
+
+    private static boolean isUiThread() {
+        return Looper.myLooper() == Looper.getMainLooper();
+    }
+
+    /**
+     * Whether icon and title of the component can be returned without loading them.
+     */
+    public boolean isCached(ComponentName component) {
+        if (component == null)
+            return false;
+        final CacheEntry entry = mCache.get(component);
+        return entry != null && entry.isComplete();
+    }
+
     public boolean isDefaultIcon(Bitmap icon) {
         return mDefaultIcon == icon;
     }
 
-    private CacheEntry cacheLocked(ComponentName componentName, ResolveInfo info) {
-        CacheEntry entry = mCache.get(componentName);
-        if (entry == null) {
-            entry = new CacheEntry();
+    /**
+     * Returns a complete entry for the component, loading it if needed, or null if the
+     * component can't be resolved.  Either resolveInfo or intent has to be supplied.
+     */
+    private CacheEntry getEntry(ComponentName component, ResolveInfo resolveInfo, Intent intent) {
+        if (component == null)
+            return null;
+        final CacheEntry entry = mCache.get(component);
+        if (entry != null && entry.isComplete()) {
+            mHitCount.incrementAndGet();
+            entry.lastAccess = mClock.incrementAndGet();
+            return entry;
+        }
+        mMissCount.incrementAndGet();
+
+        final LoadingMarker marker = new LoadingMarker();
+        final LoadingMarker loading = mLoading.putIfAbsent(component, marker);
+        if (loading != null) {
+            // Somebody else is already at it.
+            return loading.await();
+        }
+        CacheEntry result = null;
+        try {
+            result = load(component, resolveInfo, intent);
+        } finally {
+            mLoading.remove(component, marker);
+            marker.done(result);
+        }
+        return result;
+    }
+
+    private CacheEntry load(ComponentName componentName, ResolveInfo info, Intent intent) {
+        final int generation;
+        synchronized (mLock) {
+            generation = mGeneration;
+        }
+        // The previous loader could have finished before we placed our marker.
+        final CacheEntry old = mCache.get(componentName);
+        if (old != null && old.isComplete())
+            return old;
 
-            mCache.put(componentName, entry);
+        if (info == null) {
+            if (intent == null)
+                return null;
+            info = mPackageManager.resolveActivity(intent, 0);
+            if (info == null)
+                return null;
+        }
 
+        String title = old != null ? old.title : null;
+        Bitmap icon = old != null ? old.icon : null;
+
+        final IconDiskCache.Entry stored = mDiskCache.get(componentName,
+                info.activityInfo.applicationInfo);
+        if (stored != null) {
+            if (title == null)
+                title = stored.title;
+            if (icon == null)
+                icon = stored.icon;
         }
-        
-        if ( entry.title == null ) {
-            entry.title = info.loadLabel(mPackageManager).toString();
-            if (entry.title == null) {
-                entry.title = info.activityInfo.name;
-            }
+
+        boolean changed = false;
+        if (title == null) {
+            CharSequence label = info.loadLabel(mPackageManager);
+            title = label != null ? label.toString() : info.activityInfo.name;
+            changed = true;
         }
-        
-        if ( entry.icon == null ) {
-            entry.icon = Utilities.createIconBitmap(
+
+        if (icon == null) {
+            icon = Utilities.createIconBitmap(
                     info.activityInfo.loadIcon(mPackageManager), mContext);
+            changed = true;
+        }
+
+        if (changed) {
+            mDiskCache.put(componentName, info.activityInfo.applicationInfo, title, icon);
+        }
+
+        final CacheEntry entry = new CacheEntry(title, icon);
+        entry.lastAccess = mClock.incrementAndGet();
+        synchronized (mLock) {
+            // Don't resurrect anything that was flushed or removed meanwhile.
+            if (generation == mGeneration)
+                putLocked(componentName, entry);
         }
         return entry;
     }
+
+    private void putLocked(ComponentName componentName, CacheEntry entry) {
+        final CacheEntry old = mCache.put(componentName, entry);
+        if (old == null) {
+            final String packageName = componentName.getPackageName();
+            HashSet<ComponentName> components = mPackages.get(packageName);
+            if (components == null) {
+                components = new HashSet<ComponentName>();
+                mPackages.put(packageName, components);
+            }
+            components.add(componentName);
+        }
+        if (!mPinned.containsKey(componentName)) {
+            if (old != null)
+                mSize -= old.size;
+            mSize += entry.size;
+            trimToSizeLocked(mMaxSize);
+        }
+    }
+
+    /**
+     * Evict the icons of least recently used, unpinned entries until the cache fits into
+     * maxSize.  The titles are kept, they are small and may not come from the package.
+     */
+    private void trimToSizeLocked(int maxSize) {
+        if (mSize <= maxSize)
+            return;
+        final int target = maxSize - maxSize / TRIM_FRACTION;
+        final ArrayList<Map.Entry<ComponentName, CacheEntry>> entries =
+                new ArrayList<Map.Entry<ComponentName, CacheEntry>>(mCache.entrySet());
+        Collections.sort(entries, LRU_ORDER);
+        for (int i = 0; i < entries.size() && mSize > target; i++) {
+            final Map.Entry<ComponentName, CacheEntry> e = entries.get(i);
+            final ComponentName key = e.getKey();
+            final CacheEntry entry = e.getValue();
+            if (entry.icon == null || mPinned.containsKey(key))
+                continue;
+            final boolean evicted;
+            if (entry.title != null) {
+                final CacheEntry titleOnly = new CacheEntry(entry.title, null);
+                titleOnly.lastAccess = entry.lastAccess;
+                evicted = mCache.replace(key, entry, titleOnly);
+            } else {
+                evicted = mCache.remove(key, entry);
+                if (evicted)
+                    unindexLocked(key);
+            }
+            if (evicted) {
+                mSize -= entry.size;
+                mEvictionCount.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Drop the entry of the component, if any, keeping size and index in sync.
+     */
+    private void evictLocked(ComponentName componentName) {
+        final CacheEntry entry = mCache.remove(componentName);
+        if (entry == null)
+            return;
+        unindexLocked(componentName);
+        if (!mPinned.containsKey(componentName))
+            mSize -= entry.size;
+    }
+
+    private void unindexLocked(ComponentName componentName) {
+        final String packageName = componentName.getPackageName();
+        final HashSet<ComponentName> components = mPackages.get(packageName);
+        if (components != null && components.remove(componentName) && components.isEmpty())
+            mPackages.remove(packageName);
+    }
+
+    private static int sizeOf(Bitmap icon) {
+        if (icon == null)
+            return 0;
+        return icon.getRowBytes() * icon.getHeight();
+    }
 }
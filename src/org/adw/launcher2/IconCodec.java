@@ -0,0 +1,198 @@
+package org.adw.launcher2;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+/**
+ * Encodes icons for the databases.
+ *
+ * PNG is slow to decode and we decode every stored icon at startup, so icons are written
+ * as their raw premultiplied pixels, optionally deflated.  Each blob starts with a small
+ * header naming its codec; blobs without it are PNGs written by older versions and are
+ * still decoded through {@link BitmapFactory}.
+ *
+ * Blob layout: 'A' 'D' 'W' 'I', version, codec, width (2 bytes), height (2 bytes), data.
+ */
+public final class IconCodec {
+    private static final String TAG = "Launcher.IconCodec";
+
+    /** Plain PNG, no header. */
+    public static final int CODEC_PNG = 0;
+    /** Raw ARGB_8888 pixels. */
+    public static final int CODEC_RAW = 1;
+    /** Raw ARGB_8888 pixels, deflated at best speed. */
+    public static final int CODEC_DEFLATE = 2;
+
+    private static final byte[] MAGIC = { 'A', 'D', 'W', 'I' };
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = MAGIC.length + 6;
+    private static final int MAX_DIMENSION = 0xffff;
+
+    private static volatile int sCodec = CODEC_DEFLATE;
+
+    private IconCodec() {
+    }
+
+    /**
+     * Select the codec used by {@link #encode(Bitmap)}.
+     */
+    public static void setDefaultCodec(int codec) {
+        sCodec = codec;
+    }
+
+    public static int getDefaultCodec() {
+        return sCodec;
+    }
+
+    public static byte[] encode(Bitmap bitmap) {
+        return encode(bitmap, sCodec);
+    }
+
+    public static byte[] encode(Bitmap bitmap, int codec) {
+        if (bitmap == null)
+            return null;
+        if (codec == CODEC_PNG || bitmap.getConfig() != Bitmap.Config.ARGB_8888
+                || bitmap.getWidth() > MAX_DIMENSION || bitmap.getHeight() > MAX_DIMENSION) {
+            return encodePng(bitmap);
+        }
+
+        final int width = bitmap.getWidth();
+        final int height = bitmap.getHeight();
+        final int rawSize = bitmap.getRowBytes() * height;
+        final ByteBuffer pixels = ByteBuffer.allocate(rawSize);
+        bitmap.copyPixelsToBuffer(pixels);
+
+        final byte[] payload;
+        final int payloadSize;
+        if (codec == CODEC_DEFLATE) {
+            final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try {
+                deflater.setInput(pixels.array(), 0, rawSize);
+                deflater.finish();
+                // Icons are mostly transparent, the output is way smaller than the input.
+                final ByteArrayOutputStream out = new ByteArrayOutputStream(rawSize / 4);
+                final byte[] buffer = new byte[4096];
+                while (!deflater.finished()) {
+                    final int n = deflater.deflate(buffer);
+                    out.write(buffer, 0, n);
+                }
+                payload = out.toByteArray();
+                payloadSize = payload.length;
+            } finally {
+                deflater.end();
+            }
+        } else {
+            codec = CODEC_RAW;
+            payload = pixels.array();
+            payloadSize = rawSize;
+        }
+
+        final byte[] result = new byte[HEADER_SIZE + payloadSize];
+        System.arraycopy(MAGIC, 0, result, 0, MAGIC.length);
+        int pos = MAGIC.length;
+        result[pos++] = (byte) VERSION;
+        result[pos++] = (byte) codec;
+        result[pos++] = (byte) (width >> 8);
+        result[pos++] = (byte) width;
+        result[pos++] = (byte) (height >> 8);
+        result[pos++] = (byte) height;
+        System.arraycopy(payload, 0, result, pos, payloadSize);
+        return result;
+    }
+
+    /**
+     * @return the decoded bitmap or null if data is null or broken.
+     */
+    public static Bitmap decode(byte[] data) {
+        if (data == null)
+            return null;
+        try {
+            if (!hasHeader(data)) {
+                return BitmapFactory.decodeByteArray(data, 0, data.length);
+            }
+
+            int pos = MAGIC.length + 1;
+            final int codec = data[pos++];
+            final int width = ((data[pos++] & 0xff) << 8) | (data[pos++] & 0xff);
+            final int height = ((data[pos++] & 0xff) << 8) | (data[pos++] & 0xff);
+            final Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            final int rawSize = bitmap.getRowBytes() * height;
+
+            final ByteBuffer pixels;
+            switch (codec) {
+                case CODEC_RAW:
+                    if (data.length - HEADER_SIZE < rawSize)
+                        return null;
+                    pixels = ByteBuffer.wrap(data, HEADER_SIZE, rawSize).slice();
+                    break;
+                case CODEC_DEFLATE: {
+                    final byte[] raw = new byte[rawSize];
+                    final Inflater inflater = new Inflater();
+                    try {
+                        inflater.setInput(data, HEADER_SIZE, data.length - HEADER_SIZE);
+                        if (inflater.inflate(raw) != rawSize)
+                            return null;
+                    } finally {
+                        inflater.end();
+                    }
+                    pixels = ByteBuffer.wrap(raw);
+                    break;
+                }
+                default:
+                    Log.w(TAG, "Unknown icon codec " + codec);
+                    return null;
+            }
+            bitmap.copyPixelsFromBuffer(pixels);
+            return bitmap;
+        } catch (DataFormatException e) {
+            Log.w(TAG, "Could not decode icon", e);
+            return null;
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Could not decode icon", e);
+            return null;
+        }
+    }
+
+    /**
+     * @return the codec the blob was written with.
+     */
+    public static int getCodec(byte[] data) {
+        if (data == null || !hasHeader(data))
+            return CODEC_PNG;
+        return data[MAGIC.length + 1];
+    }
+
+    private static boolean hasHeader(byte[] data) {
+        if (data.length < HEADER_SIZE || data[MAGIC.length] != VERSION)
+            return false;
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (data[i] != MAGIC[i])
+                return false;
+        }
+        return true;
+    }
+
+    private static byte[] encodePng(Bitmap bitmap) {
+        // Try go guesstimate how much space the icon will take when serialized
+        // to avoid unnecessary allocations/copies during the write.
+        int size = bitmap.getWidth() * bitmap.getHeight() * 4;
+        ByteArrayOutputStream out = new ByteArrayOutputStream(size);
+        try {
+            bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+            out.flush();
+            out.close();
+            return out.toByteArray();
+        } catch (IOException e) {
+            Log.w(TAG, "Could not write icon");
+            return null;
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package org.adw.launcher2;
+
+import java.util.HashMap;
+import java.util.Locale;
+
+import android.content.ComponentName;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.graphics.Bitmap;
+import android.util.Log;
+
+/**
+ * Persistent store of rendered icons and labels. It backs the {@link IconCache} so icons
+ * survive process death and {@link IconCache#flush()}.
+ *
+ * Every row remembers the versionCode and the last update time of its package, an icon
+ * is only used while both still match. Labels are additionally bound to the locale they
+ * were loaded in.
+ */
+class IconDiskCache {
+    private static final String TAG = "Launcher.IconDiskCache";
+
+    private static final String DATABASE_NAME = "icons.db";
+    private static final int DATABASE_VERSION = 2;
+
+    static final String TABLE_ICONS = "icons";
+
+    static final class Columns {
+        static final String COMPONENT_NAME = "componentname";
+        static final String VERSION_CODE = "versioncode";
+        static final String LAST_UPDATED = "lastupdated";
+        static final String LOCALE = "locale";
+        static final String TITLE = "title";
+        static final String ICON = "icon";
+        static final String ICON_HASH = "iconhash";
+    }
+
+    /**
+     * Result of a lookup, title is null if it was stored for another locale.
+     */
+    static final class Entry {
+        String title;
+        Bitmap icon;
+    }
+
+    private static final class Fingerprint {
+        final int versionCode;
+        final long lastUpdated;
+
+        Fingerprint(int versionCode, long lastUpdated) {
+            this.versionCode = versionCode;
+            this.lastUpdated = lastUpdated;
+        }
+    }
+
+    private final PackageManager mPackageManager;
+    private final DatabaseHelper mOpenHelper;
+
+    // Package fingerprints already asked from the PackageManager, guarded by itself
+    private final HashMap<String, Fingerprint> mFingerprints = new HashMap<String, Fingerprint>();
+
+    IconDiskCache(Context context) {
+        mPackageManager = context.getPackageManager();
+        mOpenHelper = new DatabaseHelper(context);
+    }
+
+    /**
+     * Returns the stored icon and label of the component or null if there is none or
+     * the package changed since they were stored.
+     */
+    Entry get(ComponentName component, ApplicationInfo appInfo) {
+        final Fingerprint fp = getFingerprint(component.getPackageName(), appInfo);
+        if (fp == null)
+            return null;
+
+        Cursor c = null;
+        try {
+            final SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+            c = db.query(TABLE_ICONS,
+                    new String[] { Columns.VERSION_CODE, Columns.LAST_UPDATED,
+                        Columns.LOCALE, Columns.TITLE, Columns.ICON, Columns.ICON_HASH },
+                    Columns.COMPONENT_NAME + "=?",
+                    new String[] { component.flattenToString() }, null, null, null);
+            if (!c.moveToFirst())
+                return null;
+            if (c.getInt(0) != fp.versionCode || c.getLong(1) != fp.lastUpdated)
+                return null;
+
+            final byte[] data = c.getBlob(4);
+            if (data == null)
+                return null;
+            final Entry entry = new Entry();
+            entry.icon = IconPool.decode(c.getString(5), data);
+            if (entry.icon == null)
+                return null;
+            if (getCurrentLocale().equals(c.getString(2)))
+                entry.title = c.getString(3);
+            return entry;
+        } catch (SQLiteException e) {
+            Log.w(TAG, "Could not read icon for " + component, e);
+            return null;
+        } finally {
+            if (c != null)
+                c.close();
+        }
+    }
+
+    /**
+     * Store the rendered icon and label of the component.
+     */
+    void put(ComponentName component, ApplicationInfo appInfo, String title, Bitmap icon) {
+        final Fingerprint fp = getFingerprint(component.getPackageName(), appInfo);
+        if (fp == null || icon == null)
+            return;
+        final byte[] data = Utilities.flattenBitmap(icon);
+        if (data == null)
+            return;
+
+        final ContentValues values = new ContentValues();
+        values.put(Columns.COMPONENT_NAME, component.flattenToString());
+        values.put(Columns.VERSION_CODE, fp.versionCode);
+        values.put(Columns.LAST_UPDATED, fp.lastUpdated);
+        values.put(Columns.LOCALE, getCurrentLocale());
+        values.put(Columns.TITLE, title);
+        values.put(Columns.ICON, data);
+        values.put(Columns.ICON_HASH, IconPool.hash(data));
+        try {
+            mOpenHelper.getWritableDatabase().replace(TABLE_ICONS, null, values);
+        } catch (SQLiteException e) {
+            Log.w(TAG, "Could not store icon for " + component, e);
+        }
+    }
+
+    /**
+     * Forget what we know about the package, it will be asked again on the next lookup.
+     */
+    void invalidatePackage(String packageName) {
+        synchronized (mFingerprints) {
+            mFingerprints.remove(packageName);
+        }
+    }
+
+    /**
+     * Forget what we know about all packages.
+     */
+    void invalidateAll() {
+        synchronized (mFingerprints) {
+            mFingerprints.clear();
+        }
+    }
+
+    /**
+     * Delete the stored icon of the component.
+     */
+    void remove(ComponentName component) {
+        invalidatePackage(component.getPackageName());
+        try {
+            mOpenHelper.getWritableDatabase().delete(TABLE_ICONS,
+                    Columns.COMPONENT_NAME + "=?", new String[] { component.flattenToString() });
+        } catch (SQLiteException e) {
+            Log.w(TAG, "Could not remove icon of " + component, e);
+        }
+    }
+
+    private Fingerprint getFingerprint(String packageName, ApplicationInfo appInfo) {
+        synchronized (mFingerprints) {
+            Fingerprint fp = mFingerprints.get(packageName);
+            if (fp != null)
+                return fp;
+        }
+
+        final Fingerprint fp;
+        try {
+            final PackageInfo pi = mPackageManager.getPackageInfo(packageName, 0);
+            fp = new Fingerprint(pi.versionCode, Utilities.getLastUpdateTime(pi, appInfo));
+        } catch (PackageManager.NameNotFoundException e) {
+            return null;
+        }
+        synchronized (mFingerprints) {
+            mFingerprints.put(packageName, fp);
+        }
+        return fp;
+    }
+
+    private static String getCurrentLocale() {
+        return Locale.getDefault().toString();
+    }
+
+    private static class DatabaseHelper extends SQLiteOpenHelper {
+        DatabaseHelper(Context context) {
+            super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + TABLE_ICONS + " (" +
+                    Columns.COMPONENT_NAME + " TEXT PRIMARY KEY," +
+                    Columns.VERSION_CODE + " INTEGER," +
+                    Columns.LAST_UPDATED + " INTEGER," +
+                    Columns.LOCALE + " TEXT," +
+                    Columns.TITLE + " TEXT," +
+                    Columns.ICON + " BLOB," +
+                    Columns.ICON_HASH + " TEXT" +
+                    ");");
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            // It's only a cache, start over.
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_ICONS);
+            onCreate(db);
+        }
+    }
+}
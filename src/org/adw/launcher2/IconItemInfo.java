@@ -44,6 +44,14 @@ public abstract class IconItemInfo extends ItemInfo{
         return mIcon;
     }
 
+    /**
+     * Whether {@link #getIcon(IconCache)} or {@link #getTitle(IconCache)} might have to
+     * load something, if so use an {@link IconLoader} when called from the UI thread.
+     */
+    boolean needsIconLoad(IconCache iconCache) {
+        return false;
+    }
+
     public boolean usesDefaultIcon() {
     	return mIcon == null;
     }
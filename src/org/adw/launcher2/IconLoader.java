@@ -0,0 +1,172 @@
+package org.adw.launcher2;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.adw.launcher2.appdb.AppDB;
+
+import android.content.ComponentName;
+import android.content.Intent;
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Loads icons on a small pool of background threads and hands them back on the UI thread.
+ *
+ * Callers show a placeholder right away and get called back once the real icon is ready.
+ * Requests for views that get recycled in the meantime should be cancelled, a cancelled
+ * request is dropped from the queue and never calls back.
+ */
+public class IconLoader {
+    private static final String TAG = "Launcher.IconLoader";
+
+    private static final int MAX_THREADS = 2;
+
+    /**
+     * Produces the icon, runs on a pool thread.
+     */
+    public interface Job {
+        Bitmap load();
+    }
+
+    public interface Callback {
+        /**
+         * Called on the UI thread once the icon is ready, icon may be null if loading failed.
+         */
+        void onIconLoaded(Bitmap icon);
+    }
+
+    public final class Request implements Runnable {
+        private final Job mJob;
+        private final Callback mCallback;
+        private volatile boolean mCancelled;
+
+        Request(Job job, Callback callback) {
+            mJob = job;
+            mCallback = callback;
+        }
+
+        public void run() {
+            if (mCancelled)
+                return;
+            Bitmap icon = null;
+            try {
+                icon = mJob.load();
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Could not load icon", e);
+            }
+            if (mCancelled)
+                return;
+            final Bitmap result = icon;
+            mMainHandler.post(new Runnable() {
+                public void run() {
+                    if (!mCancelled)
+                        mCallback.onIconLoaded(result);
+                }
+            });
+        }
+
+        /**
+         * Drop the request, the callback won't be called afterwards.  Only call from the
+         * UI thread.
+         */
+        public void cancel() {
+            mCancelled = true;
+            mExecutor.remove(this);
+        }
+
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+    }
+
+    private final IconCache mIconCache;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final ThreadPoolExecutor mExecutor;
+
+    public IconLoader(IconCache iconCache) {
+        mIconCache = iconCache;
+
+        final int threads = Math.max(1,
+                Math.min(Runtime.getRuntime().availableProcessors(), MAX_THREADS));
+        mExecutor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    public Thread newThread(final Runnable r) {
+                        return new Thread(new Runnable() {
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                r.run();
+                            }
+                        }, "launcher-icons-" + mCount.incrementAndGet());
+                    }
+                });
+    }
+
+    public Request submit(Job job, Callback callback) {
+        final Request request = new Request(job, callback);
+        mExecutor.execute(request);
+        return request;
+    }
+
+    /**
+     * Load the icon and title of the item into the IconCache.
+     *
+     * @return null if they are available already and callers can use them right away.
+     */
+    public Request loadIcon(final IconItemInfo info, Callback callback) {
+        if (!info.needsIconLoad(mIconCache))
+            return null;
+        return submit(new Job() {
+            public Bitmap load() {
+                info.getTitle(mIconCache);
+                return info.getIcon(mIconCache);
+            }
+        }, callback);
+    }
+
+    /**
+     * Load the icons and titles of a page of items into the IconCache.  The stored icons
+     * of its apps are fetched from the AppDB with one query, the others are loaded one by
+     * one.  Pass the items that are about to become visible along with the ones that are.
+     *
+     * @return null if all of them are available already.
+     */
+    public Request loadPage(List<? extends IconItemInfo> page, final AppDB appDB,
+            Callback callback) {
+        final ArrayList<IconItemInfo> items = new ArrayList<IconItemInfo>(page.size());
+        final ArrayList<ComponentName> components = new ArrayList<ComponentName>(page.size());
+        for (IconItemInfo item : page) {
+            if (!item.needsIconLoad(mIconCache))
+                continue;
+            items.add(item);
+            if (item instanceof ShortcutInfo) {
+                final Intent intent = ((ShortcutInfo) item).getIntent();
+                components.add(intent.getComponent());
+            }
+        }
+        if (items.isEmpty())
+            return null;
+        return submit(new Job() {
+            public Bitmap load() {
+                appDB.loadIcons(components);
+                for (IconItemInfo item : items) {
+                    if (item.needsIconLoad(mIconCache)) {
+                        item.getTitle(mIconCache);
+                        item.getIcon(mIconCache);
+                    }
+                }
+                return null;
+            }
+        }, callback);
+    }
+}
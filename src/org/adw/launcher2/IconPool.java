@@ -0,0 +1,106 @@
+package org.adw.launcher2;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+
+import android.graphics.Bitmap;
+
+/**
+ * Decoded icons keyed by the content hash of their blob.
+ *
+ * The same app icon is stored in apps.db, in the icon cache and in every favorite that
+ * points to the app.  Decoding through here hands out one shared {@link Bitmap} for
+ * identical blobs, as long as somebody still holds on to it.  Shared bitmaps must not be
+ * recycled or drawn into.
+ *
+ * The databases store the {@link #hash(byte[])} next to each blob when they write it,
+ * so decoding never hashes.
+ */
+public final class IconPool {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final class Ref extends WeakReference<Bitmap> {
+        final String key;
+
+        Ref(String key, Bitmap bitmap, ReferenceQueue<Bitmap> queue) {
+            super(bitmap, queue);
+            this.key = key;
+        }
+    }
+
+    // Both guarded by sPool
+    private static final HashMap<String, Ref> sPool = new HashMap<String, Ref>();
+    private static final ReferenceQueue<Bitmap> sQueue = new ReferenceQueue<Bitmap>();
+
+    private IconPool() {
+    }
+
+    /**
+     * @return the content hash of the blob, to be stored next to it on write.
+     */
+    public static String hash(byte[] data) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        final byte[] sum = digest.digest(data);
+        final char[] result = new char[sum.length * 2];
+        for (int i = 0; i < sum.length; i++) {
+            result[i * 2] = HEX[(sum[i] >> 4) & 0xf];
+            result[i * 2 + 1] = HEX[sum[i] & 0xf];
+        }
+        return new String(result);
+    }
+
+    /**
+     * Same as {@link IconCodec#decode(byte[])} but returns the bitmap already decoded
+     * from an identical blob if there is one.
+     *
+     * @param key the stored hash of data, a blob without one is decoded but not shared.
+     */
+    public static Bitmap decode(String key, byte[] data) {
+        if (data == null)
+            return null;
+        if (key == null)
+            return IconCodec.decode(data);
+        Bitmap bitmap = get(key);
+        if (bitmap != null)
+            return bitmap;
+
+        bitmap = IconCodec.decode(data);
+        if (bitmap == null)
+            return null;
+        synchronized (sPool) {
+            // somebody may have decoded the same blob in the meantime
+            final Ref ref = sPool.get(key);
+            final Bitmap existing = ref != null ? ref.get() : null;
+            if (existing != null)
+                return existing;
+            sPool.put(key, new Ref(key, bitmap, sQueue));
+        }
+        return bitmap;
+    }
+
+    private static Bitmap get(String key) {
+        synchronized (sPool) {
+            purgeLocked();
+            final Ref ref = sPool.get(key);
+            return ref != null ? ref.get() : null;
+        }
+    }
+
+    private static void purgeLocked() {
+        Ref ref;
+        while ((ref = (Ref) sQueue.poll()) != null) {
+            // the key may have been taken over by a newer bitmap already
+            if (sPool.get(ref.key) == ref)
+                sPool.remove(ref.key);
+        }
+    }
+}
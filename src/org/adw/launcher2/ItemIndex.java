@@ -0,0 +1,85 @@
+package org.adw.launcher2;
+
+import java.util.ArrayList;
+
+import org.adw.launcher2.settings.LauncherSettings;
+
+/**
+ * The workspace items by id, and the desktop items by screen, so finding an item or the
+ * items of one screen doesn't walk all of them.  Filled by the loader and kept up to
+ * date by the {@link LauncherModel} methods that write items to the database.  Thread
+ * safe.
+ */
+final class ItemIndex {
+
+    private static final class Entry {
+        final ItemInfo item;
+        // the screen bucket the item is in, -1 if it's not on the desktop
+        final int screen;
+
+        Entry(ItemInfo item, int screen) {
+            this.item = item;
+            this.screen = screen;
+        }
+    }
+
+    private final LongHashMap<Entry> mById = new LongHashMap<Entry>();
+    private final LongHashMap<ItemInfo>[] mScreens;
+
+    @SuppressWarnings("unchecked")
+    ItemIndex(int screenCount) {
+        mScreens = new LongHashMap[screenCount];
+        for (int i = 0; i < screenCount; i++) {
+            mScreens[i] = new LongHashMap<ItemInfo>();
+        }
+    }
+
+    synchronized void clear() {
+        mById.clear();
+        for (LongHashMap<ItemInfo> screen : mScreens) {
+            screen.clear();
+        }
+    }
+
+    /**
+     * Add the item, or move it to where its fields say it is now.
+     */
+    synchronized void put(ItemInfo item) {
+        if (item.id == ItemInfo.NO_ID)
+            return;
+        removeLocked(item.id);
+
+        int screen = -1;
+        if (item.container == LauncherSettings.Favorites.CONTAINER_DESKTOP
+                && item.screen >= 0 && item.screen < mScreens.length) {
+            screen = item.screen;
+            mScreens[screen].put(item.id, item);
+        }
+        mById.put(item.id, new Entry(item, screen));
+    }
+
+    synchronized void remove(long id) {
+        removeLocked(id);
+    }
+
+    private void removeLocked(long id) {
+        final Entry entry = mById.remove(id);
+        if (entry != null && entry.screen >= 0) {
+            mScreens[entry.screen].remove(id);
+        }
+    }
+
+    synchronized ItemInfo get(long id) {
+        final Entry entry = mById.get(id);
+        return entry != null ? entry.item : null;
+    }
+
+    /**
+     * @return a copy of the desktop items on the screen.
+     */
+    synchronized ArrayList<ItemInfo> getScreen(int screen) {
+        if (screen < 0 || screen >= mScreens.length)
+            return new ArrayList<ItemInfo>();
+        return mScreens[screen].values();
+    }
+}
@@ -22,6 +22,7 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 
 import mobi.intuitit.android.content.LauncherIntent;
@@ -215,13 +216,17 @@ public final class Launcher extends Activity
 
     private LauncherModel mModel;
     private IconCache mIconCache;
+    private IconLoader mIconLoader;
     private AppDB mAppDB;
 
     private DragLayer mDragLayer;
     private static LocaleConfiguration sLocaleConfiguration = null;
 
     private final ArrayList<ItemInfo> mDesktopItems = new ArrayList<ItemInfo>();
-    private static HashMap<Long, FolderInfo> sFolders = new HashMap<Long, FolderInfo>();
+    private static LongHashMap<FolderInfo> sFolders = new LongHashMap<FolderInfo>();
+    // the shortcuts holding a pin in the icon cache, and the component they pinned
+    private final HashMap<ShortcutInfo, ComponentName> mPinnedShortcuts =
+            new HashMap<ShortcutInfo, ComponentName>();
 
     private ImageView mPreviousView;
     private ImageView mNextView;
@@ -238,6 +243,7 @@ public final class Launcher extends Activity
         LauncherApplication app = ((LauncherApplication)getApplication());
         mModel = app.setLauncher(this);
         mIconCache = app.getIconCache();
+        mIconLoader = app.getIconLoader();
         mAppDB = app.getAppDB();
         mDragController = new DragController(this);
         mInflater = getLayoutInflater();
@@ -327,7 +333,6 @@ public final class Launcher extends Activity
             new Thread("WriteLocaleConfiguration") {
                 @Override
 				public void run() {
-                	mIconCache.flush();
                 	mAppDB.updateLocale(locale);
                     writeConfiguration(Launcher.this, localeConfiguration);
                 }
@@ -391,6 +396,10 @@ public final class Launcher extends Activity
     	return mIconCache;
     }
 
+    public IconLoader getIconLoader() {
+    	return mIconLoader;
+    }
+
     public LauncherModel getModel() {
     	return mModel;
     }
@@ -646,6 +655,7 @@ public final class Launcher extends Activity
     protected void onPause() {
         super.onPause();
         mPaused = true;
+        mAppDB.flushLaunchInfos();
         dismissPreview(mPreviousView);
         dismissPreview(mNextView);
         mDragController.cancelDrag();
@@ -939,13 +949,33 @@ public final class Launcher extends Activity
      *
      * @return A View inflated from layoutResId.
      */
-    View createShortcut(int layoutResId, ViewGroup parent, ShortcutInfo info) {
+    View createShortcut(int layoutResId, ViewGroup parent, final ShortcutInfo info) {
         TextView favorite = (TextView) mInflater.inflate(layoutResId, parent, false);
 
-        favorite.setCompoundDrawablesWithIntrinsicBounds(null,
-                new FastBitmapDrawable(info.getIcon(mIconCache)),
-                null, null);
-        favorite.setText(info.getTitle(mIconCache));
+        if (info.usesDefaultIcon() && info.intent != null) {
+            // Visible on the workspace, don't let the drawer evict it.
+            pinShortcut(info);
+        }
+        final TextView view = favorite;
+        final IconLoader.Request request = mIconLoader.loadIcon(info, new IconLoader.Callback() {
+            public void onIconLoaded(Bitmap icon) {
+                view.setCompoundDrawablesWithIntrinsicBounds(null,
+                        new FastBitmapDrawable(info.getIcon(mIconCache)), null, null);
+                view.setText(info.getTitle(mIconCache));
+            }
+        });
+        if (request == null) {
+            favorite.setCompoundDrawablesWithIntrinsicBounds(null,
+                    new FastBitmapDrawable(info.getIcon(mIconCache)),
+                    null, null);
+            favorite.setText(info.getTitle(mIconCache));
+        } else {
+            // placeholder until the loader is done, the title may be known already
+            favorite.setCompoundDrawablesWithIntrinsicBounds(null,
+                    new FastBitmapDrawable(mIconCache.getDefaultIcon()),
+                    null, null);
+            favorite.setText(info.getTitle(mIconCache));
+        }
         favorite.setTag(info);
         favorite.setOnClickListener(this);
 
@@ -993,6 +1023,32 @@ public final class Launcher extends Activity
         }
     }
 
+    /**
+     * Pin the icon of the shortcut once, however often its view is recreated.
+     */
+    private void pinShortcut(ShortcutInfo info) {
+        if (mPinnedShortcuts.containsKey(info))
+            return;
+        final ComponentName component = info.intent.getComponent();
+        if (component != null) {
+            mPinnedShortcuts.put(info, component);
+            mIconCache.pin(component);
+        }
+    }
+
+    private void unpinShortcut(ShortcutInfo info) {
+        final ComponentName component = mPinnedShortcuts.remove(info);
+        if (component != null)
+            mIconCache.unpin(component);
+    }
+
+    private void unpinAllShortcuts() {
+        for (ComponentName component : mPinnedShortcuts.values()) {
+            mIconCache.unpin(component);
+        }
+        mPinnedShortcuts.clear();
+    }
+
     /**
      * Remove an item from the desktop
      * @param info
@@ -1004,6 +1060,8 @@ public final class Launcher extends Activity
     	{
 	        if(mDesktopItems!=null)
 	        	mDesktopItems.remove(info);
+	        if (info instanceof ShortcutInfo)
+	        	unpinShortcut((ShortcutInfo)info);
 	        View view = mWorkspace.getViewForTag(info);
 	        if (view != null)
 	        	((ViewGroup) view.getParent()).removeView(view);
@@ -2349,6 +2407,7 @@ public final class Launcher extends Activity
      * Implementation of the method from LauncherModel.Callbacks.
      */
     public void startBinding() {
+        unpinAllShortcuts();
         final Workspace workspace = mWorkspace;
         int count = workspace.getChildCount();
         for (int i = 0; i < count; i++) {
@@ -2401,7 +2460,7 @@ public final class Launcher extends Activity
     /**
      * Implementation of the method from LauncherModel.Callbacks.
      */
-    public void bindFolders(HashMap<Long, FolderInfo> folders) {
+    public void bindFolders(LongHashMap<FolderInfo> folders) {
         setLoadOnResume();
         sFolders.clear();
         sFolders.putAll(folders);
@@ -2510,6 +2569,69 @@ public final class Launcher extends Activity
         mAllAppsGrid.addApps(apps);
     }
 
+    /**
+     * Favorites were changed behind our back, replace the views of the items with the
+     * given ids with the new items.
+     *
+     * Implementation of the method from LauncherModel.Callbacks.
+     */
+    public void bindFavoritesChanged(HashSet<Long> ids, ArrayList<ItemInfo> items,
+            ArrayList<IconItemInfo> removedDrawerItems) {
+        setLoadOnResume();
+
+        // the rows that are still there come back in items
+        final HashSet<Long> gone = new HashSet<Long>(ids);
+        for (ItemInfo item : items) {
+            gone.remove(item.id);
+        }
+
+        mWorkspace.removeItemsById(ids);
+        for (int i = mDesktopItems.size() - 1; i >= 0; i--) {
+            final ItemInfo item = mDesktopItems.get(i);
+            if (ids.contains(item.id)) {
+                mDesktopItems.remove(i);
+                if (item instanceof ShortcutInfo) {
+                    unpinShortcut((ShortcutInfo) item);
+                } else if (item instanceof LauncherAppWidgetInfo && gone.contains(item.id)) {
+                    // clean up like a delete from the workspace does
+                    final LauncherAppWidgetInfo widget = (LauncherAppWidgetInfo) item;
+                    removeAppWidget(widget);
+                    mAppWidgetHost.deleteAppWidgetId(widget.appWidgetId);
+                }
+            }
+        }
+        for (Long id : gone) {
+            sFolders.remove(id);
+        }
+        if (removedDrawerItems.size() > 0) {
+            mAllAppsGrid.removeApps(removedDrawerItems);
+        }
+
+        final ArrayList<ItemInfo> desktopItems = new ArrayList<ItemInfo>();
+        final ArrayList<IconItemInfo> drawerItems = new ArrayList<IconItemInfo>();
+        for (ItemInfo item : items) {
+            if (item instanceof LauncherAppWidgetInfo) {
+                bindAppWidget((LauncherAppWidgetInfo) item);
+            } else if (item.container == LauncherSettings.Favorites.CONTAINER_DESKTOP) {
+                desktopItems.add(item);
+            } else if (item.container == LauncherSettings.Favorites.CONTAINER_DRAWER) {
+                drawerItems.add((IconItemInfo) item);
+            }
+        }
+        if (desktopItems.size() > 0) {
+            bindItems(desktopItems, 0, desktopItems.size());
+        }
+        if (drawerItems.size() > 0) {
+            mAllAppsGrid.addApps(drawerItems);
+        }
+
+        // Shortcuts in folders may have changed too
+        final Folder openFolder = mWorkspace.getOpenFolder();
+        if (openFolder != null) {
+            openFolder.notifyDataSetChanged();
+        }
+    }
+
     /**
      * A package was updated.
      *
@@ -2796,12 +2918,12 @@ public final class Launcher extends Activity
 	}
 
     boolean ocuppiedArea(int screen,long ignoreItemId,Rect rect){
-        final ArrayList<ItemInfo>desktopItems= mDesktopItems;
+        final ArrayList<ItemInfo>screenItems= mModel.getScreenItems(screen);
         Rect r=new Rect();
-        for (ItemInfo it : desktopItems) {
-            if(it.screen==screen && it.id != ignoreItemId){
+        for (ItemInfo it : screenItems) {
+            if(it.id != ignoreItemId){
                 r.set(it.cellX,it.cellY,it.cellX+it.spanX,it.cellY+it.spanY);
-                if(rect.intersect(r)){
+                if(Rect.intersects(rect, r)){
                     return true;
                 }
             }
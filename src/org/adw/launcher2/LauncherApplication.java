@@ -17,14 +17,10 @@
 package org.adw.launcher2;
 
 import org.adw.launcher2.appdb.AppDB;
-import org.adw.launcher2.settings.LauncherSettings;
 import org.adw.launcher2.settings.Preferences;
 
 import android.app.Application;
-import android.content.ContentResolver;
 import android.content.IntentFilter;
-import android.database.ContentObserver;
-import android.os.Handler;
 
 public class LauncherApplication extends Application {
 	private static final String ACTION_EXTERNAL_APPLICATIONS_AVAILABLE = "android.intent.action.EXTERNAL_APPLICATIONS_AVAILABLE";
@@ -32,6 +28,7 @@ public class LauncherApplication extends Application {
 
 	private LauncherModel mModel;
 	private IconCache mIconCache;
+	private IconLoader mIconLoader;
     private AppDB mAppDB;
 
     @Override
@@ -41,6 +38,7 @@ public class LauncherApplication extends Application {
         super.onCreate();
 
         mIconCache = new IconCache(this);
+        mIconLoader = new IconLoader(mIconCache);
         mAppDB = new AppDB(this, mIconCache);
         mModel = new LauncherModel(this, mIconCache);
 
@@ -52,10 +50,9 @@ public class LauncherApplication extends Application {
         filter.addAction(ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE);
         registerReceiver(mModel, filter);
 
-        // Register for changes to the favorites
-        ContentResolver resolver = getContentResolver();
-        resolver.registerContentObserver(LauncherSettings.Favorites.CONTENT_URI, true,
-                mFavoritesObserver);
+        // Register for changes to the favorites, the provider tells us which rows changed
+        filter = new IntentFilter(LauncherProvider.ACTION_FAVORITES_CHANGED);
+        registerReceiver(mModel, filter);
     }
 
     /**
@@ -67,21 +64,9 @@ public class LauncherApplication extends Application {
 
         unregisterReceiver(mModel);
 
-        ContentResolver resolver = getContentResolver();
-        resolver.unregisterContentObserver(mFavoritesObserver);
         Preferences.getInstance().setLauncher(null);
     }
 
-    /**
-     * Receives notifications whenever the user favorites have changed.
-     */
-    private final ContentObserver mFavoritesObserver = new ContentObserver(new Handler()) {
-        @Override
-        public void onChange(boolean selfChange) {
-            mModel.startLoader(LauncherApplication.this, false);
-        }
-    };
-
     LauncherModel setLauncher(Launcher launcher) {
         mModel.initialize(launcher);
         return mModel;
@@ -91,6 +76,10 @@ public class LauncherApplication extends Application {
         return mIconCache;
     }
 
+    IconLoader getIconLoader() {
+        return mIconLoader;
+    }
+
     LauncherModel getModel() {
         return mModel;
     }
@@ -19,7 +19,10 @@ package org.adw.launcher2;
 import java.lang.ref.WeakReference;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 
 import org.adw.launcher2.appdb.AppDB;
@@ -40,7 +43,6 @@ import android.content.pm.ProviderInfo;
 import android.content.res.Resources;
 import android.database.Cursor;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.os.Handler;
 import android.os.HandlerThread;
@@ -58,7 +60,25 @@ import android.util.Log;
 public class LauncherModel extends BroadcastReceiver {
     static final String TAG = "Launcher.Model";
 
-    private static final int ITEMS_CHUNK = 6; // batch size for the workspace icons
+    private static final boolean DEBUG_BIND = false;
+
+    // Time one batch of workspace icons may take on the UI thread, half a frame
+    private static final long BIND_BUDGET_NANOS = 8000000L;
+    // What binding an item of a type we haven't timed yet is assumed to cost
+    private static final long DEFAULT_BIND_COST_NANOS = 1500000L;
+    // Average time binding an item took so far by item type, only used on the UI thread
+    private static final long[] sBindCostNanos = new long[] {
+        DEFAULT_BIND_COST_NANOS, DEFAULT_BIND_COST_NANOS,
+        DEFAULT_BIND_COST_NANOS, DEFAULT_BIND_COST_NANOS
+    };
+
+    // API 8, the broadcasts simply never come on older platforms
+    private static final String ACTION_EXTERNAL_APPLICATIONS_AVAILABLE =
+            "android.intent.action.EXTERNAL_APPLICATIONS_AVAILABLE";
+    private static final String ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE =
+            "android.intent.action.EXTERNAL_APPLICATIONS_UNAVAILABLE";
+    private static final String EXTRA_CHANGED_PACKAGE_LIST =
+            "android.intent.extra.changed_package_list";
 
     private final Object mLock = new Object();
     private final DeferredHandler mHandler = new DeferredHandler();
@@ -75,6 +95,8 @@ public class LauncherModel extends BroadcastReceiver {
     // need to do a requery.  These are only ever touched from the loader thread.
     private boolean mWorkspaceLoaded;
     private boolean mAllAppsLoaded;
+    // Whether apps.db was checked against the PackageManager since the process started
+    private boolean mAppsReconciled;
 
     private WeakReference<Callbacks> mCallbacks;
 
@@ -83,7 +105,9 @@ public class LauncherModel extends BroadcastReceiver {
     final ArrayList<ItemInfo> mItems = new ArrayList<ItemInfo>();
     final ArrayList<IconItemInfo> mAdditionalDrawerItems = new ArrayList<IconItemInfo>();
     final ArrayList<LauncherAppWidgetInfo> mAppWidgets = new ArrayList<LauncherAppWidgetInfo>();
-    final HashMap<Long, FolderInfo> mFolders = new HashMap<Long, FolderInfo>();
+    final LongHashMap<FolderInfo> mFolders = new LongHashMap<FolderInfo>();
+    // The items above and the ones the launcher added since, by id and by screen
+    private static final ItemIndex sItemIndex = new ItemIndex(Launcher.SCREEN_COUNT);
 
     private final Bitmap mDefaultIcon;
 
@@ -92,11 +116,13 @@ public class LauncherModel extends BroadcastReceiver {
         public int getCurrentWorkspaceScreen();
         public void startBinding();
         public void bindItems(ArrayList<ItemInfo> shortcuts, int start, int end);
-        public void bindFolders(HashMap<Long,FolderInfo> folders);
+        public void bindFolders(LongHashMap<FolderInfo> folders);
         public void finishBindingItems();
         public void bindAppWidget(LauncherAppWidgetInfo info);
         public void bindAllApplications(ArrayList<ShortcutInfo> apps, ArrayList<IconItemInfo> otherItems);
         public void bindAppsAdded(ArrayList<? extends IconItemInfo> apps);
+        public void bindFavoritesChanged(HashSet<Long> ids, ArrayList<ItemInfo> items,
+                ArrayList<IconItemInfo> removedDrawerItems);
         public void bindAppsUpdated(ArrayList<ShortcutInfo> apps);
         public void bindAppsRemoved(ArrayList<ShortcutInfo> apps, boolean permanent);
         public boolean isAllAppsVisible();
@@ -148,6 +174,7 @@ public class LauncherModel extends BroadcastReceiver {
         values.put(LauncherSettings.Favorites.CELLY, item.cellY);
         values.put(LauncherSettings.Favorites.SCREEN, item.screen);
 
+        sItemIndex.put(item);
         sWorker.post(new Runnable() {
                 public void run() {
                     cr.update(uri, values, null, null);
@@ -176,7 +203,7 @@ public class LauncherModel extends BroadcastReceiver {
     /**
      * Find a folder in the db, creating the FolderInfo if necessary, and adding it to folderList.
      */
-    FolderInfo getFolderById(Context context, HashMap<Long,FolderInfo> folderList, long id) {
+    FolderInfo getFolderById(Context context, LongHashMap<FolderInfo> folderList, long id) {
         final ContentResolver cr = context.getContentResolver();
         Cursor c = cr.query(LauncherSettings.Favorites.CONTENT_URI, null,
                 "_id=? and (itemType=? or itemType=?)",
@@ -240,6 +267,7 @@ public class LauncherModel extends BroadcastReceiver {
 
         if (result != null) {
             item.id = Integer.parseInt(result.getPathSegments().get(1));
+            sItemIndex.put(item);
         }
     }
 
@@ -253,6 +281,7 @@ public class LauncherModel extends BroadcastReceiver {
         item.onAddToDatabase(values);
 
         cr.update(LauncherSettings.Favorites.getContentUri(item.id, false), values, null, null);
+        sItemIndex.put(item);
     }
 
     /**
@@ -263,6 +292,7 @@ public class LauncherModel extends BroadcastReceiver {
     static void deleteItemFromDatabase(Context context, ItemInfo item) {
         final ContentResolver cr = context.getContentResolver();
         final Uri uriToDelete = LauncherSettings.Favorites.getContentUri(item.id, false);
+        sItemIndex.remove(item.id);
         sWorker.post(new Runnable() {
                 public void run() {
                     cr.delete(uriToDelete, null, null);
@@ -279,18 +309,22 @@ public class LauncherModel extends BroadcastReceiver {
         cr.delete(LauncherSettings.Favorites.getContentUri(info.id, false), null, null);
         cr.delete(LauncherSettings.Favorites.CONTENT_URI,
                 LauncherSettings.Favorites.CONTAINER + "=" + info.id, null);
+
+        sItemIndex.remove(info.id);
+        for (ShortcutInfo item : info.contents) {
+            sItemIndex.remove(item.id);
+        }
     }
 
     public ItemInfo getItemInfoById(long id) {
-    	for(ItemInfo ii : mItems) {
-    		if (ii.id == id)
-    			return ii;
-    	}
-    	for(IconItemInfo ii : mAdditionalDrawerItems) {
-    		if (ii.id == id)
-    			return ii;
-    	}
-    	return null;
+        return sItemIndex.get(id);
+    }
+
+    /**
+     * @return the desktop items on the screen, widgets included.
+     */
+    ArrayList<ItemInfo> getScreenItems(int screen) {
+        return sItemIndex.getScreen(screen);
     }
 
     /**
@@ -327,6 +361,9 @@ public class LauncherModel extends BroadcastReceiver {
         	if (intent.hasExtra(AppDB.EXTRA_DELETED_COMPONENT_NAMES)) {
         		String[] removed = intent.getStringArrayExtra(AppDB.EXTRA_DELETED_COMPONENT_NAMES);
         		if (removed != null) {
+        			// the rows may have been deleted by an other AppDB than the one counting
+        			((LauncherApplication) context.getApplicationContext()).getAppDB()
+        					.forgetLaunchInfos(removed);
         			PackageUpdatedTask put = new PackageUpdatedTask(PackageUpdatedTask.OP_REMOVE_CNAMES, removed, context);
         			enqueuePackageUpdated(put);
         		}
@@ -349,38 +386,68 @@ public class LauncherModel extends BroadcastReceiver {
         	}
 
         }
-        // TODO_BOOMBULER
-        /* else if (Intent.ACTION_EXTERNAL_APPLICATIONS_AVAILABLE.equals(action)) {
-            // First, schedule to add these apps back in.
-            String[] packages = intent.getStringArrayExtra(Intent.EXTRA_CHANGED_PACKAGE_LIST);
-            enqueuePackageUpdated(new PackageUpdatedTask(PackageUpdatedTask.OP_ADD, packages));
-            // Then, rebind everything.
-            boolean runLoader = true;
-            if (mCallbacks != null) {
-                Callbacks callbacks = mCallbacks.get();
-                if (callbacks != null) {
-                    // If they're paused, we can skip loading, because they'll do it again anyway
-                    if (callbacks.setLoadOnResume()) {
-                        runLoader = false;
+        else if (LauncherProvider.ACTION_FAVORITES_CHANGED.equals(action)) {
+            final long[] ids = concat(intent.getLongArrayExtra(LauncherProvider.EXTRA_INSERTED),
+                    intent.getLongArrayExtra(LauncherProvider.EXTRA_UPDATED),
+                    intent.getLongArrayExtra(LauncherProvider.EXTRA_DELETED));
+            if (ids == null) {
+                reloadWorkspace(context);
+            } else if (ids.length > 0) {
+                sWorker.post(new FavoritesChangedTask(context, ids));
+            }
+        }
+        else if (ACTION_EXTERNAL_APPLICATIONS_AVAILABLE.equals(action)) {
+            // Sync all remounted packages as one batch, the AppDB tells us the outcome
+            // with a single INTENT_DB_CHANGED.
+            final String[] packages = intent.getStringArrayExtra(EXTRA_CHANGED_PACKAGE_LIST);
+            if (packages != null && packages.length > 0) {
+                final Context appContext = context;
+                sWorker.post(new Runnable() {
+                    public void run() {
+                        new AppDB(appContext, mIconCache).PackagesChanged(packages);
                     }
-                }
+                });
             }
-            if (runLoader) {
-                startLoader(mApp, false);
+        } else if (ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE.equals(action)) {
+            // The apps are still in the AppDB, just hide them until they come back.
+            String[] packages = intent.getStringArrayExtra(EXTRA_CHANGED_PACKAGE_LIST);
+            if (packages != null && packages.length > 0) {
+                enqueuePackageUpdated(new PackageUpdatedTask(
+                        PackageUpdatedTask.OP_UNAVAILABLE, packages, context));
             }
+        }
+    }
 
-        } else if (Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE.equals(action)) {
-            String[] packages = intent.getStringArrayExtra(Intent.EXTRA_CHANGED_PACKAGE_LIST);
-            enqueuePackageUpdated(new PackageUpdatedTask(
-                        PackageUpdatedTask.OP_UNAVAILABLE, packages));
-
-        }*/
+    /**
+     * @return all ids in one array, null if none of the arrays are there.
+     */
+    private static long[] concat(long[]... arrays) {
+        int count = 0;
+        boolean any = false;
+        for (long[] a : arrays) {
+            if (a != null) {
+                count += a.length;
+                any = true;
+            }
+        }
+        if (!any)
+            return null;
+        final long[] result = new long[count];
+        int pos = 0;
+        for (long[] a : arrays) {
+            if (a != null) {
+                System.arraycopy(a, 0, result, pos, a.length);
+                pos += a.length;
+            }
+        }
+        return result;
     }
 
     private class PackageUpdatedTask implements Runnable {
         int mOp;
         long[] mAppIds;
         String[] mComponentNames;
+        String[] mPackages;
         String mPackage;
         Context mContext;
 
@@ -397,9 +464,16 @@ public class LauncherModel extends BroadcastReceiver {
             mContext = context;
         }
 
-        public PackageUpdatedTask(int op, String[] componentNames, Context context) {
+        /**
+         * @param names component names, or package names for OP_UNAVAILABLE.
+         */
+        public PackageUpdatedTask(int op, String[] names, Context context) {
         	mOp = op;
-        	mComponentNames = componentNames;
+        	if (op == OP_UNAVAILABLE) {
+        		mPackages = names;
+        	} else {
+        		mComponentNames = names;
+        	}
         	mContext = context;
         }
 
@@ -417,25 +491,30 @@ public class LauncherModel extends BroadcastReceiver {
                 	List<ShortcutInfo> newApps = appDB.getApps(mAppIds);
 
                     for (ShortcutInfo info : newApps) {
+                        mIconCache.invalidatePackage(info.intent.getComponent().getPackageName());
                         mAllAppsList.add(info);
                     }
                     break;
                 case OP_REMOVE_CNAMES: {
                 	mAllAppsList.removeComponentNames(mComponentNames);
+                	break;
                 }
                 case OP_REMOVE_PACKAGE: {
                 	mAllAppsList.removePackage(mPackage);
+                	break;
                 }
                 case OP_UPDATE:
                 	List<ShortcutInfo> updated = appDB.getApps(mAppIds);
+                    for (ShortcutInfo info : updated) {
+                        mIconCache.invalidatePackage(info.intent.getComponent().getPackageName());
+                    }
                     mAllAppsList.updateFromShortcuts(updated);
                     break;
-                /*
                 case OP_UNAVAILABLE:
-                    for (int i=0; i<N; i++) {
-                        mAllAppsList.removePackage(packages[i]);
+                    for (String packageName : mPackages) {
+                        mAllAppsList.removePackage(packageName);
                     }
-                    break;*/
+                    break;
             }
 
             ArrayList<ShortcutInfo> added = null;
@@ -450,7 +529,12 @@ public class LauncherModel extends BroadcastReceiver {
                 removed = mAllAppsList.removed;
                 mAllAppsList.removed = new ArrayList<ShortcutInfo>();
                 for (ShortcutInfo info: removed) {
-                    mIconCache.remove(info.intent.getComponent());
+                    if (mOp == OP_UNAVAILABLE) {
+                        // the app comes back with the media, keep its icon on disk
+                        mIconCache.evict(info.intent.getComponent());
+                    } else {
+                        mIconCache.remove(info.intent.getComponent());
+                    }
                 }
             }
             if (mAllAppsList.modified.size() > 0) {
@@ -500,6 +584,477 @@ public class LauncherModel extends BroadcastReceiver {
     }
 
 
+    /**
+     * Column indices of a cursor over the favorites table.
+     */
+    private static final class FavoritesColumns {
+        final int idIndex;
+        final int intentIndex;
+        final int titleIndex;
+        final int iconTypeIndex;
+        final int iconIndex;
+        final int iconHashIndex;
+        final int containerIndex;
+        final int itemTypeIndex;
+        final int appWidgetIdIndex;
+        final int screenIndex;
+        final int cellXIndex;
+        final int cellYIndex;
+        final int spanXIndex;
+        final int spanYIndex;
+        final int uriIndex;
+        final int displayModeIndex;
+
+        FavoritesColumns(Cursor c) {
+            idIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites._ID);
+            intentIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites.INTENT);
+            titleIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites.TITLE);
+            iconTypeIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites.ICON_TYPE);
+            iconIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites.ICON);
+            iconHashIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites.ICON_HASH);
+            containerIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites.CONTAINER);
+            itemTypeIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites.ITEM_TYPE);
+            appWidgetIdIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites.APPWIDGET_ID);
+            screenIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites.SCREEN);
+            cellXIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites.CELLX);
+            cellYIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites.CELLY);
+            spanXIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites.SPANX);
+            spanYIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites.SPANY);
+            uriIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites.URI);
+            displayModeIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites.DISPLAY_MODE);
+        }
+    }
+
+    /**
+     * A favorites row copied out of the cursor, so it can be decoded on any thread.
+     */
+    private static final class FavoriteRow {
+        final long id;
+        final int itemType;
+        final int container;
+        final int screen;
+        final int cellX;
+        final int cellY;
+        final int spanX;
+        final int spanY;
+        final String intentDescription;
+        final String title;
+        final int iconType;
+        byte[] iconData;
+        final String iconHash;
+        final int appWidgetId;
+        final String uri;
+        final int displayMode;
+
+        // Set by decodeFavorite()
+        Intent intent;
+        Bitmap icon;
+        // the shortcut or widget, folders are made in order by makeFavorite()
+        ItemInfo item;
+        // whether the row is unusable for good
+        boolean dead;
+
+        FavoriteRow(Cursor c, FavoritesColumns col) {
+            id = c.getLong(col.idIndex);
+            itemType = c.getInt(col.itemTypeIndex);
+            container = c.getInt(col.containerIndex);
+            screen = c.getInt(col.screenIndex);
+            cellX = c.getInt(col.cellXIndex);
+            cellY = c.getInt(col.cellYIndex);
+            spanX = c.getInt(col.spanXIndex);
+            spanY = c.getInt(col.spanYIndex);
+            intentDescription = c.getString(col.intentIndex);
+            title = c.getString(col.titleIndex);
+            iconType = c.getInt(col.iconTypeIndex);
+            iconData = c.getBlob(col.iconIndex);
+            iconHash = c.getString(col.iconHashIndex);
+            appWidgetId = c.getInt(col.appWidgetIdIndex);
+            uri = c.getString(col.uriIndex);
+            displayMode = c.getInt(col.displayModeIndex);
+        }
+    }
+
+    /**
+     * Make the item for the favorite at the cursor position.  Folders are taken from
+     * or put into folders.
+     *
+     * @param itemsToRemove gets the ids of items that are gone for good.
+     * @return null if the row is unusable.
+     */
+    private static ItemInfo readFavorite(Context context, Cursor c, FavoritesColumns col,
+            LongHashMap<FolderInfo> folders, ArrayList<Long> itemsToRemove,
+            AppWidgetManager widgets, boolean isSafeMode) {
+        final FavoriteRow row = new FavoriteRow(c, col);
+        decodeFavorite(context, row, widgets, isSafeMode);
+        return makeFavorite(row, folders, itemsToRemove);
+    }
+
+    /**
+     * The expensive part of loading a favorite: parsing its intent, decoding its icon
+     * and checking that what it points to is still installed.  Touches nothing but the
+     * row, so rows can be decoded in parallel.
+     */
+    private static void decodeFavorite(Context context, FavoriteRow row,
+            AppWidgetManager widgets, boolean isSafeMode) {
+        switch (row.itemType) {
+        case LauncherSettings.Favorites.ITEM_TYPE_SHORTCUT:
+            try {
+                row.intent = Intent.parseUri(row.intentDescription, 0);
+            } catch (URISyntaxException e) {
+                break;
+            }
+            final ShortcutInfo info = new ShortcutInfo();
+            info.itemType = LauncherSettings.Favorites.ITEM_TYPE_SHORTCUT;
+            info.setTitle(row.title);
+            info.setIcon(IconPool.decode(row.iconHash, row.iconData));
+            info.intent = row.intent;
+            info.id = row.id;
+            info.container = row.container;
+            info.screen = row.screen;
+            info.cellX = row.cellX;
+            info.cellY = row.cellY;
+            row.item = info;
+            break;
+
+        case LauncherSettings.Favorites.ITEM_TYPE_LIVE_FOLDER:
+            // Make sure the live folder exists
+            final ProviderInfo providerInfo = context.getPackageManager()
+                    .resolveContentProvider(Uri.parse(row.uri).getAuthority(), 0);
+            if (providerInfo == null && !isSafeMode) {
+                row.dead = true;
+                break;
+            }
+            if (row.intentDescription != null) {
+                try {
+                    row.intent = Intent.parseUri(row.intentDescription, 0);
+                } catch (URISyntaxException e) {
+                    // Ignore, a live folder might not have a base intent
+                }
+            }
+            if (row.iconType == LauncherSettings.Favorites.ICON_TYPE_BITMAP)
+                row.icon = IconPool.decode(row.iconHash, row.iconData);
+            break;
+
+        case LauncherSettings.Favorites.ITEM_TYPE_APPWIDGET:
+            // Read all Launcher-specific widget details
+            final AppWidgetProviderInfo provider = widgets.getAppWidgetInfo(row.appWidgetId);
+            if (!isSafeMode && (provider == null || provider.provider == null ||
+                    provider.provider.getPackageName() == null)) {
+                Log.e(TAG, "Deleting widget that isn't installed anymore: id="
+                        + row.id + " appWidgetId=" + row.appWidgetId);
+                row.dead = true;
+                break;
+            }
+            if (row.container != LauncherSettings.Favorites.CONTAINER_DESKTOP) {
+                Log.e(TAG, "Widget found where container "
+                        + "!= CONTAINER_DESKTOP -- ignoring!");
+                break;
+            }
+            final LauncherAppWidgetInfo appWidgetInfo = new LauncherAppWidgetInfo(row.appWidgetId);
+            appWidgetInfo.id = row.id;
+            appWidgetInfo.container = row.container;
+            appWidgetInfo.screen = row.screen;
+            appWidgetInfo.cellX = row.cellX;
+            appWidgetInfo.cellY = row.cellY;
+            appWidgetInfo.spanX = row.spanX;
+            appWidgetInfo.spanY = row.spanY;
+            row.item = appWidgetInfo;
+            break;
+        }
+        // the decoded icon is all we need from now on
+        row.iconData = null;
+    }
+
+    /**
+     * Finish a decoded favorite, folders are taken from or put into folders.  Not thread
+     * safe, call in the order of the rows.
+     *
+     * @param itemsToRemove gets the ids of items that are gone for good.
+     * @return null if the row is unusable.
+     */
+    private static ItemInfo makeFavorite(FavoriteRow row, LongHashMap<FolderInfo> folders,
+            ArrayList<Long> itemsToRemove) {
+        if (row.dead) {
+            itemsToRemove.add(row.id);
+            return null;
+        }
+
+        final FolderInfo folderInfo;
+        switch (row.itemType) {
+        case LauncherSettings.Favorites.ITEM_TYPE_USER_FOLDER:
+            folderInfo = findOrMakeUserFolder(folders, row.id);
+            break;
+        case LauncherSettings.Favorites.ITEM_TYPE_LIVE_FOLDER:
+            final LiveFolderInfo liveFolderInfo = findOrMakeLiveFolder(folders, row.id);
+            liveFolderInfo.uri = Uri.parse(row.uri);
+            liveFolderInfo.baseIntent = row.intent;
+            liveFolderInfo.displayMode = row.displayMode;
+            liveFolderInfo.setIcon(row.icon);
+            folderInfo = liveFolderInfo;
+            break;
+        default:
+            return row.item;
+        }
+
+        folderInfo.setTitle(row.title);
+        folderInfo.id = row.id;
+        folderInfo.container = row.container;
+        folderInfo.screen = row.screen;
+        folderInfo.cellX = row.cellX;
+        folderInfo.cellY = row.cellY;
+        return folderInfo;
+    }
+
+    /**
+     * A shortcut to add to a user folder the UI may be showing already.  Folder contents
+     * are only touched on the UI thread once the folder has been bound.
+     */
+    private static final class FolderAdd {
+        final UserFolderInfo folder;
+        final ShortcutInfo item;
+
+        FolderAdd(UserFolderInfo folder, ShortcutInfo item) {
+            this.folder = folder;
+            this.item = item;
+        }
+    }
+
+    private static void applyFolderAdds(ArrayList<FolderAdd> adds) {
+        for (FolderAdd add : adds) {
+            add.folder.add(add.item);
+        }
+    }
+
+    /**
+     * Put an item made by {@link #makeFavorite} where it belongs in the model.
+     *
+     * @param folderAdds if not null, shortcuts in user folders are collected there to be
+     *        added on the UI thread, instead of added right away.
+     */
+    private void addFavorite(ItemInfo item, ArrayList<FolderAdd> folderAdds) {
+        sItemIndex.put(item);
+        switch (item.itemType) {
+        case LauncherSettings.Favorites.ITEM_TYPE_SHORTCUT:
+            if (item.container == LauncherSettings.Favorites.CONTAINER_DESKTOP) {
+                mItems.add(item);
+            } else {
+                // Item is in a user folder
+                final UserFolderInfo folder = findOrMakeUserFolder(mFolders, item.container);
+                if (folderAdds != null) {
+                    folderAdds.add(new FolderAdd(folder, (ShortcutInfo) item));
+                } else {
+                    folder.add((ShortcutInfo) item);
+                }
+            }
+            break;
+        case LauncherSettings.Favorites.ITEM_TYPE_USER_FOLDER:
+        case LauncherSettings.Favorites.ITEM_TYPE_LIVE_FOLDER:
+            if (item.container == LauncherSettings.Favorites.CONTAINER_DESKTOP) {
+                mItems.add(item);
+            } else if (item.container == LauncherSettings.Favorites.CONTAINER_DRAWER) {
+                mAdditionalDrawerItems.add((IconItemInfo) item);
+            }
+            break;
+        case LauncherSettings.Favorites.ITEM_TYPE_APPWIDGET:
+            mAppWidgets.add((LauncherAppWidgetInfo) item);
+            break;
+        }
+    }
+
+    /**
+     * Delete dead items, without notifying anybody.
+     */
+    private static void removeFavorites(ContentResolver cr, ArrayList<Long> ids) {
+        if (ids.size() == 0)
+            return;
+        ContentProviderClient client = cr.acquireContentProviderClient(
+                LauncherSettings.Favorites.CONTENT_URI);
+        try {
+            for (long id : ids) {
+                try {
+                    client.delete(LauncherSettings.Favorites.getContentUri(id, false), null, null);
+                } catch (RemoteException e) {
+                    Log.w(TAG, "Could not remove id = " + id);
+                }
+            }
+        } finally {
+            client.release();
+        }
+    }
+
+    /**
+     * Applies changes of single favorites rows to the loaded workspace: the items with
+     * the given ids are dropped from the model and read again if they still exist.
+     */
+    private class FavoritesChangedTask implements Runnable {
+        private final Context mContext;
+        private final long[] mIds;
+
+        FavoritesChangedTask(Context context, long[] ids) {
+            mContext = context;
+            mIds = ids;
+        }
+
+        public void run() {
+            if (!mWorkspaceLoaded) {
+                // The loader reads them along with everything else
+                return;
+            }
+
+            final HashSet<Long> ids = new HashSet<Long>(mIds.length);
+            for (long id : mIds) {
+                ids.add(id);
+                sItemIndex.remove(id);
+            }
+
+            // Forget what we knew about the rows
+            removeById(mItems, ids);
+            removeById(mAppWidgets, ids);
+            final ArrayList<IconItemInfo> removedDrawerItems = new ArrayList<IconItemInfo>();
+            for (Iterator<IconItemInfo> it = mAdditionalDrawerItems.iterator(); it.hasNext();) {
+                final IconItemInfo item = it.next();
+                if (ids.contains(item.id)) {
+                    removedDrawerItems.add(item);
+                    it.remove();
+                }
+            }
+            // the UI reads the folder contents, they are changed over there
+            final ArrayList<UserFolderInfo> userFolders = new ArrayList<UserFolderInfo>();
+            for (FolderInfo folder : mFolders.values()) {
+                if (folder instanceof UserFolderInfo) {
+                    userFolders.add((UserFolderInfo) folder);
+                }
+            }
+            final ArrayList<FolderAdd> folderAdds = new ArrayList<FolderAdd>();
+
+            // and read what is left of them
+            final ContentResolver cr = mContext.getContentResolver();
+            final AppWidgetManager widgets = AppWidgetManager.getInstance(mContext);
+            final boolean isSafeMode = mContext.getPackageManager().isSafeMode();
+            final ArrayList<Long> itemsToRemove = new ArrayList<Long>();
+            final ArrayList<ItemInfo> items = new ArrayList<ItemInfo>();
+            final HashSet<Long> found = new HashSet<Long>();
+
+            final StringBuilder where = new StringBuilder(LauncherSettings.Favorites._ID);
+            where.append(" IN (");
+            for (int i = 0; i < mIds.length; i++) {
+                if (i > 0) where.append(',');
+                where.append(mIds[i]);
+            }
+            where.append(')');
+
+            final Cursor c = cr.query(LauncherSettings.Favorites.CONTENT_URI, null,
+                    where.toString(), null, null);
+            if (c == null)
+                return;
+            try {
+                final FavoritesColumns columns = new FavoritesColumns(c);
+                while (c.moveToNext()) {
+                    try {
+                        final ItemInfo item = readFavorite(mContext, c, columns, mFolders,
+                                itemsToRemove, widgets, isSafeMode);
+                        if (item != null) {
+                            addFavorite(item, folderAdds);
+                            items.add(item);
+                            found.add(item.id);
+                        }
+                    } catch (Exception e) {
+                        Log.w(TAG, "Could not load changed item:", e);
+                    }
+                }
+            } finally {
+                c.close();
+            }
+
+            for (Long id : ids) {
+                if (!found.contains(id)) {
+                    mFolders.remove(id);
+                }
+            }
+            removeFavorites(cr, itemsToRemove);
+
+            final Callbacks callbacks = mCallbacks != null ? mCallbacks.get() : null;
+            final LongHashMap<FolderInfo> folders = new LongHashMap<FolderInfo>(mFolders);
+            mHandler.post(new Runnable() {
+                public void run() {
+                    for (UserFolderInfo folder : userFolders) {
+                        removeById(folder.contents, ids);
+                    }
+                    applyFolderAdds(folderAdds);
+                    if (callbacks != null && callbacks == mCallbacks.get()) {
+                        callbacks.bindFolders(folders);
+                        callbacks.bindFavoritesChanged(ids, items, removedDrawerItems);
+                    }
+                }
+            });
+        }
+    }
+
+    private static void removeById(ArrayList<? extends ItemInfo> items, HashSet<Long> ids) {
+        for (int i = items.size() - 1; i >= 0; i--) {
+            if (ids.contains(items.get(i).id)) {
+                items.remove(i);
+            }
+        }
+    }
+
+    private static long getBindCost(int itemType) {
+        return itemType >= 0 && itemType < sBindCostNanos.length
+                ? sBindCostNanos[itemType] : DEFAULT_BIND_COST_NANOS;
+    }
+
+    private static void updateBindCost(int itemType, long nanos) {
+        if (itemType >= 0 && itemType < sBindCostNanos.length) {
+            // moving average, one slow item doesn't shrink the batches for good
+            sBindCostNanos[itemType] += (nanos - sBindCostNanos[itemType]) / 4;
+        }
+    }
+
+    private static int screenDistance(ItemInfo item, int currentScreen) {
+        return Math.abs(item.screen - currentScreen);
+    }
+
+    /**
+     * Stable sort by the distance of the screen from the current one.
+     */
+    private static <T extends ItemInfo> void sortByScreen(ArrayList<T> items,
+            final int currentScreen) {
+        Collections.sort(items, new Comparator<ItemInfo>() {
+            public int compare(ItemInfo a, ItemInfo b) {
+                return screenDistance(a, currentScreen) - screenDistance(b, currentScreen);
+            }
+        });
+    }
+
+    /**
+     * Read the whole workspace again, for changes we don't know the rows of.
+     */
+    private void reloadWorkspace(Context context) {
+        sWorker.post(new Runnable() {
+            public void run() {
+                if (!mWorkspaceLoaded)
+                    return;
+                mWorkspaceLoaded = false;
+                // loadWorkspace() hands them out again
+                final ArrayList<IconItemInfo> drawerItems =
+                        new ArrayList<IconItemInfo>(mAdditionalDrawerItems);
+                final Callbacks callbacks = mCallbacks != null ? mCallbacks.get() : null;
+                if (callbacks == null || drawerItems.size() == 0) {
+                    return;
+                }
+                mHandler.post(new Runnable() {
+                    public void run() {
+                        if (callbacks == mCallbacks.get()) {
+                            callbacks.bindFavoritesChanged(new HashSet<Long>(),
+                                    new ArrayList<ItemInfo>(), drawerItems);
+                        }
+                    }
+                });
+            }
+        });
+        startLoader(context, false);
+    }
+
     public void startLoader(Context context, boolean isLaunching) {
         synchronized (mLock) {
             // Don't bother to start the thread if we know it's not going to do anything
@@ -549,21 +1104,71 @@ public class LauncherModel extends BroadcastReceiver {
         }
 
         private void loadAndBindWorkspace() {
-            // Load the workspace
+            // Don't use these two variables in any of the callback runnables.
+            // Otherwise we hold a reference to them.
+            final Callbacks oldCallbacks = mCallbacks.get();
+            if (oldCallbacks == null) {
+                // This launcher has exited and nobody bothered to tell us.  Just bail.
+                Log.w(TAG, "LoaderTask running with no launcher");
+                return;
+            }
+            // WARNING: this is calling into the workspace from the background thread,
+            // but since getCurrentScreen() just returns the int, we should be okay.  This
+            // is just a hint for the order, and if it's wrong, we'll be okay.
+            final int currentScreen = oldCallbacks.getCurrentWorkspaceScreen();
 
-            // For now, just always reload the workspace.  It's ~100 ms vs. the
-            // binding which takes many hundreds of ms.
-            // We can reconsider.
-            if (!mWorkspaceLoaded) {
-                loadWorkspace();
-                if (mStopped) {
-                    return;
-                }
-                mWorkspaceLoaded = true;
+            if (mWorkspaceLoaded) {
+                startBinding(oldCallbacks);
+                bindScreens(oldCallbacks, currentScreen, new ArrayList<ItemInfo>(mItems),
+                        new ArrayList<LauncherAppWidgetInfo>(mAppWidgets));
+                finishBinding(oldCallbacks);
+                return;
             }
 
-            // Bind the workspace
-            bindWorkspace();
+            // Read and show the current screen and its neighbours first, then stream
+            // in the other screens behind them.
+            final String nearby = getNearbyScreensSelection(currentScreen);
+            final ItemInfo occupied[][][] = new ItemInfo[Launcher.SCREEN_COUNT][Launcher.NUMBER_CELLS_X][Launcher.NUMBER_CELLS_Y];
+
+            loadWorkspace(nearby, true, occupied);
+            if (mStopped) {
+                return;
+            }
+            final int nearbyItems = mItems.size();
+            final int nearbyWidgets = mAppWidgets.size();
+            startBinding(oldCallbacks);
+            bindScreens(oldCallbacks, currentScreen, new ArrayList<ItemInfo>(mItems),
+                    new ArrayList<LauncherAppWidgetInfo>(mAppWidgets));
+
+            loadWorkspace("NOT (" + nearby + ") OR " + LauncherSettings.Favorites.CONTAINER
+                    + " IS NULL OR " + LauncherSettings.Favorites.SCREEN + " IS NULL",
+                    false, occupied);
+            if (mStopped) {
+                return;
+            }
+            mWorkspaceLoaded = true;
+            bindScreens(oldCallbacks, currentScreen,
+                    new ArrayList<ItemInfo>(mItems.subList(nearbyItems, mItems.size())),
+                    new ArrayList<LauncherAppWidgetInfo>(
+                            mAppWidgets.subList(nearbyWidgets, mAppWidgets.size())));
+            finishBinding(oldCallbacks);
+        }
+
+        /**
+         * Selects the desktop items on the given screen and the ones next to it.
+         */
+        private String getNearbyScreensSelection(int currentScreen) {
+            final StringBuilder where = new StringBuilder();
+            where.append(LauncherSettings.Favorites.CONTAINER).append('=')
+                    .append(LauncherSettings.Favorites.CONTAINER_DESKTOP)
+                    .append(" AND ").append(LauncherSettings.Favorites.SCREEN).append(" IN (");
+            final int first = Math.max(0, currentScreen - 1);
+            final int last = Math.min(Launcher.SCREEN_COUNT - 1, currentScreen + 1);
+            for (int screen = first; screen <= last; screen++) {
+                if (screen > first) where.append(',');
+                where.append(screen);
+            }
+            return where.append(')').toString();
         }
 
         private void waitForIdle() {
@@ -632,6 +1237,18 @@ public class LauncherModel extends BroadcastReceiver {
                 }
             }
 
+            if (!mStopped && !mAppsReconciled) {
+                // Catch up on package broadcasts we missed, once the UI has settled
+                mAppsReconciled = true;
+                final Context appContext = mContext.getApplicationContext();
+                mHandler.postIdle(new Runnable() {
+                    public void run() {
+                        // off the loader thread, it would hold up binding for seconds
+                        AppDB.scheduleMaintenance(appContext, mIconCache);
+                    }
+                });
+            }
+
             // Clear out this reference, otherwise we end up holding it until all of the
             // callback runnables are done.
             mContext = null;
@@ -723,7 +1340,14 @@ public class LauncherModel extends BroadcastReceiver {
             return true;
         }
 
-        private void loadWorkspace() {
+        /**
+         * Read the favorites matching the selection into the model.
+         *
+         * @param first whether this is the first part of the workspace, the model is
+         *        cleared before it.
+         * @param occupied shared by all parts.
+         */
+        private void loadWorkspace(String selection, boolean first, ItemInfo occupied[][][]) {
 
             final Context context = mContext;
             final ContentResolver contentResolver = context.getContentResolver();
@@ -731,233 +1355,30 @@ public class LauncherModel extends BroadcastReceiver {
             final AppWidgetManager widgets = AppWidgetManager.getInstance(context);
             final boolean isSafeMode = manager.isSafeMode();
 
-            mAdditionalDrawerItems.clear();
-            mItems.clear();
-            mAppWidgets.clear();
-            mFolders.clear();
+            if (first) {
+                mAdditionalDrawerItems.clear();
+                mItems.clear();
+                mAppWidgets.clear();
+                mFolders.clear();
+                sItemIndex.clear();
+            }
 
             final ArrayList<Long> itemsToRemove = new ArrayList<Long>();
+            // folders of the first part have been bound already when the rest is read
+            final ArrayList<FolderAdd> folderAdds = first ? null : new ArrayList<FolderAdd>();
 
             final Cursor c = contentResolver.query(
-                    LauncherSettings.Favorites.CONTENT_URI, null, null, null, null);
-
-            final ItemInfo occupied[][][] = new ItemInfo[Launcher.SCREEN_COUNT][Launcher.NUMBER_CELLS_X][Launcher.NUMBER_CELLS_Y];
+                    LauncherSettings.Favorites.CONTENT_URI, null, selection, null, null);
 
+            // Copy the rows out first, decode them on all cores and then place them
+            // one by one in the order of the cursor.
+            final ArrayList<FavoriteRow> rows = new ArrayList<FavoriteRow>();
             try {
-                final int idIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites._ID);
-                final int intentIndex = c.getColumnIndexOrThrow
-                        (LauncherSettings.Favorites.INTENT);
-                final int titleIndex = c.getColumnIndexOrThrow
-                        (LauncherSettings.Favorites.TITLE);
-                final int iconTypeIndex = c.getColumnIndexOrThrow(
-                        LauncherSettings.Favorites.ICON_TYPE);
-                final int iconIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites.ICON);
-                c.getColumnIndexOrThrow(
-                        LauncherSettings.Favorites.ICON_PACKAGE);
-                c.getColumnIndexOrThrow(
-                        LauncherSettings.Favorites.ICON_RESOURCE);
-                final int containerIndex = c.getColumnIndexOrThrow(
-                        LauncherSettings.Favorites.CONTAINER);
-                final int itemTypeIndex = c.getColumnIndexOrThrow(
-                        LauncherSettings.Favorites.ITEM_TYPE);
-                final int appWidgetIdIndex = c.getColumnIndexOrThrow(
-                        LauncherSettings.Favorites.APPWIDGET_ID);
-                final int screenIndex = c.getColumnIndexOrThrow(
-                        LauncherSettings.Favorites.SCREEN);
-                final int cellXIndex = c.getColumnIndexOrThrow
-                        (LauncherSettings.Favorites.CELLX);
-                final int cellYIndex = c.getColumnIndexOrThrow
-                        (LauncherSettings.Favorites.CELLY);
-                final int spanXIndex = c.getColumnIndexOrThrow
-                        (LauncherSettings.Favorites.SPANX);
-                final int spanYIndex = c.getColumnIndexOrThrow(
-                        LauncherSettings.Favorites.SPANY);
-                final int uriIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites.URI);
-                final int displayModeIndex = c.getColumnIndexOrThrow(
-                        LauncherSettings.Favorites.DISPLAY_MODE);
-
-                ShortcutInfo info;
-                String intentDescription;
-                LauncherAppWidgetInfo appWidgetInfo;
-                int container;
-                long id;
-                Intent intent;
+                final FavoritesColumns columns = new FavoritesColumns(c);
 
                 while (!mStopped && c.moveToNext()) {
                     try {
-                        int itemType = c.getInt(itemTypeIndex);
-
-                        switch (itemType) {
-                        case LauncherSettings.Favorites.ITEM_TYPE_SHORTCUT:
-                            intentDescription = c.getString(intentIndex);
-                            try {
-                                intent = Intent.parseUri(intentDescription, 0);
-                            } catch (URISyntaxException e) {
-                                continue;
-                            }
-
-                            info = getShortcutInfo(c, context, iconIndex, titleIndex);
-
-                            if (info != null) {
-                                info.intent = intent;
-                                info.id = c.getLong(idIndex);
-                                container = c.getInt(containerIndex);
-                                info.container = container;
-                                info.screen = c.getInt(screenIndex);
-                                info.cellX = c.getInt(cellXIndex);
-                                info.cellY = c.getInt(cellYIndex);
-
-                                // check & update map of what's occupied
-                                if (!checkItemPlacement(occupied, info)) {
-                                    break;
-                                }
-
-                                switch (container) {
-                                case LauncherSettings.Favorites.CONTAINER_DESKTOP:
-                                    mItems.add(info);
-                                    break;
-                                default:
-                                    // Item is in a user folder
-                                    UserFolderInfo folderInfo =
-                                            findOrMakeUserFolder(mFolders, container);
-                                    folderInfo.add(info);
-                                    break;
-                                }
-                            } else {
-                                // Failed to load the shortcut, probably because the
-                                // activity manager couldn't resolve it (maybe the app
-                                // was uninstalled), or the db row was somehow screwed up.
-                                // Delete it.
-                                id = c.getLong(idIndex);
-                                Log.e(TAG, "Error loading shortcut " + id + ", removing it");
-                                contentResolver.delete(LauncherSettings.Favorites.getContentUri(
-                                            id, false), null, null);
-                            }
-                            break;
-
-                        case LauncherSettings.Favorites.ITEM_TYPE_USER_FOLDER:
-                            id = c.getLong(idIndex);
-                            UserFolderInfo folderInfo = findOrMakeUserFolder(mFolders, id);
-
-                            folderInfo.setTitle(c.getString(titleIndex));
-
-                            folderInfo.id = id;
-                            container = c.getInt(containerIndex);
-                            folderInfo.container = container;
-                            folderInfo.screen = c.getInt(screenIndex);
-                            folderInfo.cellX = c.getInt(cellXIndex);
-                            folderInfo.cellY = c.getInt(cellYIndex);
-
-                            // check & update map of what's occupied
-                            if (!checkItemPlacement(occupied, folderInfo)) {
-                                break;
-                            }
-
-                            switch (container) {
-                                case LauncherSettings.Favorites.CONTAINER_DESKTOP:
-                                    mItems.add(folderInfo);
-                                    break;
-                                case LauncherSettings.Favorites.CONTAINER_DRAWER:
-                                	mAdditionalDrawerItems.add(folderInfo);
-                                	break;
-                            }
-
-                            mFolders.put(folderInfo.id, folderInfo);
-                            break;
-
-                        case LauncherSettings.Favorites.ITEM_TYPE_LIVE_FOLDER:
-                            id = c.getLong(idIndex);
-                            Uri uri = Uri.parse(c.getString(uriIndex));
-
-                            // Make sure the live folder exists
-                            final ProviderInfo providerInfo =
-                                    context.getPackageManager().resolveContentProvider(
-                                            uri.getAuthority(), 0);
-
-                            if (providerInfo == null && !isSafeMode) {
-                                itemsToRemove.add(id);
-                            } else {
-                                LiveFolderInfo liveFolderInfo = findOrMakeLiveFolder(mFolders, id);
-
-                                intentDescription = c.getString(intentIndex);
-                                intent = null;
-                                if (intentDescription != null) {
-                                    try {
-                                        intent = Intent.parseUri(intentDescription, 0);
-                                    } catch (URISyntaxException e) {
-                                        // Ignore, a live folder might not have a base intent
-                                    }
-                                }
-
-                                liveFolderInfo.setTitle(c.getString(titleIndex));
-                                liveFolderInfo.id = id;
-                                liveFolderInfo.uri = uri;
-                                container = c.getInt(containerIndex);
-                                liveFolderInfo.container = container;
-                                liveFolderInfo.screen = c.getInt(screenIndex);
-                                liveFolderInfo.cellX = c.getInt(cellXIndex);
-                                liveFolderInfo.cellY = c.getInt(cellYIndex);
-                                liveFolderInfo.baseIntent = intent;
-                                liveFolderInfo.displayMode = c.getInt(displayModeIndex);
-
-                                // check & update map of what's occupied
-                                if (!checkItemPlacement(occupied, liveFolderInfo)) {
-                                    break;
-                                }
-
-                                loadLiveFolderIcon(context, c, iconTypeIndex, iconIndex, liveFolderInfo);
-
-                                switch (container) {
-                                    case LauncherSettings.Favorites.CONTAINER_DESKTOP:
-                                        mItems.add(liveFolderInfo);
-                                        break;
-                                    case LauncherSettings.Favorites.CONTAINER_DRAWER:
-                                    	mAdditionalDrawerItems.add(liveFolderInfo);
-                                    	break;
-                                }
-                                mFolders.put(liveFolderInfo.id, liveFolderInfo);
-                            }
-                            break;
-
-                        case LauncherSettings.Favorites.ITEM_TYPE_APPWIDGET:
-                            // Read all Launcher-specific widget details
-                            int appWidgetId = c.getInt(appWidgetIdIndex);
-                            id = c.getLong(idIndex);
-
-                            final AppWidgetProviderInfo provider =
-                                    widgets.getAppWidgetInfo(appWidgetId);
-
-                            if (!isSafeMode && (provider == null || provider.provider == null ||
-                                    provider.provider.getPackageName() == null)) {
-                                Log.e(TAG, "Deleting widget that isn't installed anymore: id="
-                                        + id + " appWidgetId=" + appWidgetId);
-                                itemsToRemove.add(id);
-                            } else {
-                                appWidgetInfo = new LauncherAppWidgetInfo(appWidgetId);
-                                appWidgetInfo.id = id;
-                                appWidgetInfo.screen = c.getInt(screenIndex);
-                                appWidgetInfo.cellX = c.getInt(cellXIndex);
-                                appWidgetInfo.cellY = c.getInt(cellYIndex);
-                                appWidgetInfo.spanX = c.getInt(spanXIndex);
-                                appWidgetInfo.spanY = c.getInt(spanYIndex);
-
-                                container = c.getInt(containerIndex);
-                                if (container != LauncherSettings.Favorites.CONTAINER_DESKTOP) {
-                                    Log.e(TAG, "Widget found where container "
-                                            + "!= CONTAINER_DESKTOP -- ignoring!");
-                                    continue;
-                                }
-                                appWidgetInfo.container = c.getInt(containerIndex);
-
-                                // check & update map of what's occupied
-                                if (!checkItemPlacement(occupied, appWidgetInfo)) {
-                                    break;
-                                }
-
-                                mAppWidgets.add(appWidgetInfo);
-                            }
-                            break;
-                        }
+                        rows.add(new FavoriteRow(c, columns));
                     } catch (Exception e) {
                         Log.w(TAG, "Desktop items loading interrupted:", e);
                     }
@@ -965,93 +1386,109 @@ public class LauncherModel extends BroadcastReceiver {
             } finally {
                 c.close();
             }
-
-            if (mAdditionalDrawerItems.size() > 0) {
-            	Callbacks cbs = mCallbacks.get();
-            	if (cbs != null) {
-            		cbs.bindAppsAdded(mAdditionalDrawerItems);
-            	}
+            if (mStopped) {
+                return;
             }
 
-            if (itemsToRemove.size() > 0) {
-                ContentProviderClient client = contentResolver.acquireContentProviderClient(
-                                LauncherSettings.Favorites.CONTENT_URI);
-                // Remove dead items
-                for (long id : itemsToRemove) {
-                    // Don't notify content observers
-                    try {
-                        client.delete(LauncherSettings.Favorites.getContentUri(id, false),
-                                null, null);
-                    } catch (RemoteException e) {
-                        Log.w(TAG, "Could not remove id = " + id);
+            final List<FavoriteRow> decoded = ParallelMap.map(rows,
+                    new ParallelMap.Function<FavoriteRow, FavoriteRow>() {
+                        public FavoriteRow apply(FavoriteRow row) {
+                            try {
+                                decodeFavorite(context, row, widgets, isSafeMode);
+                                return row;
+                            } catch (Exception e) {
+                                Log.w(TAG, "Could not load item " + row.id, e);
+                                return null;
+                            }
+                        }
+                    });
+
+            final int count = decoded.size();
+            for (int i = 0; i < count && !mStopped; i++) {
+                final FavoriteRow row = decoded.get(i);
+                if (row == null) {
+                    continue;
+                }
+                try {
+                    final ItemInfo item = makeFavorite(row, mFolders, itemsToRemove);
+
+                    // check & update map of what's occupied
+                    if (item != null && checkItemPlacement(occupied, item)) {
+                        addFavorite(item, folderAdds);
                     }
+                } catch (Exception e) {
+                    Log.w(TAG, "Desktop items loading interrupted:", e);
                 }
             }
 
-        }
-
-        /**
-         * Read everything out of our database.
-         */
-        private void bindWorkspace() {
-
-            // Don't use these two variables in any of the callback runnables.
-            // Otherwise we hold a reference to them.
-            final Callbacks oldCallbacks = mCallbacks.get();
-            if (oldCallbacks == null) {
-                // This launcher has exited and nobody bothered to tell us.  Just bail.
-                Log.w(TAG, "LoaderTask running with no launcher");
-                return;
+            if (folderAdds != null && folderAdds.size() > 0) {
+                mHandler.post(new Runnable() {
+                    public void run() {
+                        applyFolderAdds(folderAdds);
+                    }
+                });
             }
 
-            int N;
-            // Tell the workspace that we're about to start firing items at it
-            mHandler.post(new Runnable() {
-                public void run() {
-                    Callbacks callbacks = tryGetCallbacks(oldCallbacks);
-                    if (callbacks != null) {
-                        callbacks.startBinding();
-                    }
-                }
-            });
-            // Add the items to the workspace.
-            N = mItems.size();
-            for (int i=0; i<N; i+=ITEMS_CHUNK) {
-                final int start = i;
-                final int chunkSize = (i+ITEMS_CHUNK <= N) ? ITEMS_CHUNK : (N-i);
+            if (mAdditionalDrawerItems.size() > 0) {
+                final Callbacks oldCallbacks = mCallbacks.get();
+                final ArrayList<IconItemInfo> drawerItems =
+                        new ArrayList<IconItemInfo>(mAdditionalDrawerItems);
                 mHandler.post(new Runnable() {
                     public void run() {
                         Callbacks callbacks = tryGetCallbacks(oldCallbacks);
                         if (callbacks != null) {
-                            callbacks.bindItems(mItems, start, start+chunkSize);
+                            callbacks.bindAppsAdded(drawerItems);
                         }
                     }
                 });
             }
+
+            removeFavorites(contentResolver, itemsToRemove);
+        }
+
+        private void startBinding(final Callbacks oldCallbacks) {
+            // Tell the workspace that we're about to start firing items at it
             mHandler.post(new Runnable() {
                 public void run() {
                     Callbacks callbacks = tryGetCallbacks(oldCallbacks);
                     if (callbacks != null) {
-                        callbacks.bindFolders(mFolders);
+                        callbacks.startBinding();
                     }
                 }
             });
-            // Wait until the queue goes empty.
-            mHandler.post(new Runnable() {
-                public void run() {
+        }
+
+        /**
+         * Add the items and widgets to the workspace, screen by screen starting with the
+         * current one.  Pass copies, the model may change under the callbacks still
+         * waiting in the queue.
+         */
+        private void bindScreens(final Callbacks oldCallbacks, int currentScreen,
+                final ArrayList<ItemInfo> items, ArrayList<LauncherAppWidgetInfo> widgets) {
+            sortByScreen(items, currentScreen);
+            sortByScreen(widgets, currentScreen);
+
+            final int N = items.size();
+            final int W = widgets.size();
+            int i = 0;
+            int w = 0;
+            while (i < N || w < W) {
+                // everything as far from the current screen as the next item
+                final int distance = Math.min(
+                        i < N ? screenDistance(items.get(i), currentScreen) : Integer.MAX_VALUE,
+                        w < W ? screenDistance(widgets.get(w), currentScreen) : Integer.MAX_VALUE);
+
+                int end = i;
+                while (end < N && screenDistance(items.get(end), currentScreen) == distance) {
+                    end++;
                 }
-            });
-            // Bind the widgets, one at a time.
-            // WARNING: this is calling into the workspace from the background thread,
-            // but since getCurrentScreen() just returns the int, we should be okay.  This
-            // is just a hint for the order, and if it's wrong, we'll be okay.
-            // TODO: instead, we should have that push the current screen into here.
-            final int currentScreen = oldCallbacks.getCurrentWorkspaceScreen();
-            N = mAppWidgets.size();
-            // once for the current screen
-            for (int i=0; i<N; i++) {
-                final LauncherAppWidgetInfo widget = mAppWidgets.get(i);
-                if (widget.screen == currentScreen) {
+                if (end > i) {
+                    mHandler.post(new ItemsBinder(oldCallbacks, items, i, end));
+                }
+                i = end;
+
+                for (; w < W && screenDistance(widgets.get(w), currentScreen) == distance; w++) {
+                    final LauncherAppWidgetInfo widget = widgets.get(w);
                     mHandler.post(new Runnable() {
                         public void run() {
                             Callbacks callbacks = tryGetCallbacks(oldCallbacks);
@@ -1062,20 +1499,67 @@ public class LauncherModel extends BroadcastReceiver {
                     });
                 }
             }
-            // once for the other screens
-            for (int i=0; i<N; i++) {
-                final LauncherAppWidgetInfo widget = mAppWidgets.get(i);
-                if (widget.screen != currentScreen) {
-                    mHandler.post(new Runnable() {
-                        public void run() {
-                            Callbacks callbacks = tryGetCallbacks(oldCallbacks);
-                            if (callbacks != null) {
-                                callbacks.bindAppWidget(widget);
-                            }
-                        }
-                    });
+        }
+
+        /**
+         * Binds a range of items in as many batches as it takes to keep each batch within
+         * BIND_BUDGET_NANOS, judging by what binding each type of item took so far.  The
+         * looper gets to handle input and drawing between the batches.
+         */
+        private class ItemsBinder implements Runnable {
+            private final Callbacks mOldCallbacks;
+            private final ArrayList<ItemInfo> mBindItems;
+            private final int mEnd;
+            private int mNext;
+
+            ItemsBinder(Callbacks oldCallbacks, ArrayList<ItemInfo> items, int start, int end) {
+                mOldCallbacks = oldCallbacks;
+                mBindItems = items;
+                mNext = start;
+                mEnd = end;
+            }
+
+            public void run() {
+                Callbacks callbacks = tryGetCallbacks(mOldCallbacks);
+                if (callbacks == null) {
+                    return;
+                }
+
+                final int first = mNext;
+                final long batchStart = System.nanoTime();
+                long elapsed;
+                do {
+                    final int itemType = mBindItems.get(mNext).itemType;
+                    final long start = System.nanoTime();
+                    callbacks.bindItems(mBindItems, mNext, mNext + 1);
+                    final long now = System.nanoTime();
+                    updateBindCost(itemType, now - start);
+                    elapsed = now - batchStart;
+                    mNext++;
+                } while (mNext < mEnd && elapsed
+                        + getBindCost(mBindItems.get(mNext).itemType) <= BIND_BUDGET_NANOS);
+
+                if (DEBUG_BIND) {
+                    Log.d(TAG, "bound " + (mNext - first) + " items in "
+                            + (elapsed / 1000) + "us, " + (mEnd - mNext) + " to go");
+                }
+                if (mNext < mEnd) {
+                    // ahead of whatever was queued after us
+                    mHandler.postAtFrontOfQueue(this);
                 }
             }
+        }
+
+        private void finishBinding(final Callbacks oldCallbacks) {
+            final LongHashMap<FolderInfo> folders = new LongHashMap<FolderInfo>(mFolders);
+            mHandler.post(new Runnable() {
+                public void run() {
+                    Callbacks callbacks = tryGetCallbacks(oldCallbacks);
+                    if (callbacks != null) {
+                        callbacks.bindFolders(folders);
+                    }
+                }
+            });
             // Tell the workspace that we're done.
             mHandler.post(new Runnable() {
                 public void run() {
@@ -1140,7 +1624,9 @@ public class LauncherModel extends BroadcastReceiver {
             }
             long startTime = System.currentTimeMillis();
 
-            List<ShortcutInfo>  apps =  new AppDB(mContext, mIconCache).getApps();
+            // the shared AppDB, the drawer sorts on the launch counters read with the apps
+            final AppDB appDB = ((LauncherApplication) mContext.getApplicationContext()).getAppDB();
+            List<ShortcutInfo>  apps =  appDB.getApps();
             long endTime = System.currentTimeMillis();
 
             Log.v(TAG, "found apps: "+apps.size());
@@ -1213,26 +1699,8 @@ public class LauncherModel extends BroadcastReceiver {
         return info;
     }
 
-    /**
-     * Make an ShortcutInfo object for a shortcut that isn't an application.
-     */
-    private ShortcutInfo getShortcutInfo(Cursor c, Context context, int iconIndex, int titleIndex) {
-
-        final ShortcutInfo info = new ShortcutInfo();
-        info.itemType = LauncherSettings.Favorites.ITEM_TYPE_SHORTCUT;
-
-        info.setTitle(c.getString(titleIndex));
-        info.setIcon(getIconFromCursor(c, iconIndex));
-        return info;
-    }
-
     static Bitmap getIconFromCursor(Cursor c, int iconIndex) {
-        byte[] data = c.getBlob(iconIndex);
-        try {
-            return BitmapFactory.decodeByteArray(data, 0, data.length);
-        } catch (Exception e) {
-            return null;
-        }
+        return IconCodec.decode(c.getBlob(iconIndex));
     }
 
     ShortcutInfo addShortcut(Context context, Intent data,
@@ -1281,21 +1749,12 @@ public class LauncherModel extends BroadcastReceiver {
         return info;
     }
 
-    private static void loadLiveFolderIcon(Context context, Cursor c, int iconTypeIndex,
-            int iconBitmapIndex, LiveFolderInfo liveFolderInfo) {
-
-        int iconType = c.getInt(iconTypeIndex);
-        if (iconType == LauncherSettings.Favorites.ICON_TYPE_BITMAP)
-            liveFolderInfo.setIcon(getIconFromCursor(c,iconBitmapIndex));
-        else
-        	liveFolderInfo.setIcon(null);
-    }
 
     /**
      * Return an existing UserFolderInfo object if we have encountered this ID previously,
      * or make a new one.
      */
-    private static UserFolderInfo findOrMakeUserFolder(HashMap<Long, FolderInfo> folders, long id) {
+    private static UserFolderInfo findOrMakeUserFolder(LongHashMap<FolderInfo> folders, long id) {
         // See if a placeholder was created for us already
         FolderInfo folderInfo = folders.get(id);
         if (folderInfo == null || !(folderInfo instanceof UserFolderInfo)) {
@@ -1310,7 +1769,7 @@ public class LauncherModel extends BroadcastReceiver {
      * Return an existing UserFolderInfo object if we have encountered this ID previously, or make a
      * new one.
      */
-    private static LiveFolderInfo findOrMakeLiveFolder(HashMap<Long, FolderInfo> folders, long id) {
+    private static LiveFolderInfo findOrMakeLiveFolder(LongHashMap<FolderInfo> folders, long id) {
         // See if a placeholder was created for us already
         FolderInfo folderInfo = folders.get(id);
         if (folderInfo == null || !(folderInfo instanceof LiveFolderInfo)) {
@@ -1344,6 +1803,7 @@ public class LauncherModel extends BroadcastReceiver {
         values.put(LauncherSettings.Favorites.SCREEN, item.screen);
 
         cr.update(LauncherSettings.Favorites.getContentUri(item.id, false), values, null, null);
+        sItemIndex.put(item);
     }
 
 }
@@ -18,6 +18,8 @@ package org.adw.launcher2;
 
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.HashMap;
 
 import org.adw.launcher2.settings.LauncherSettings;
 import org.adw.launcher2.settings.LauncherSettings.Favorites;
@@ -28,11 +30,14 @@ import android.appwidget.AppWidgetHost;
 import android.appwidget.AppWidgetManager;
 import android.content.ComponentName;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.content.pm.ActivityInfo;
 import android.content.pm.PackageManager;
 import android.content.res.Resources;
@@ -45,7 +50,6 @@ import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.database.sqlite.SQLiteStatement;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.provider.Settings;
 import android.text.TextUtils;
@@ -59,13 +63,30 @@ public class LauncherProvider extends ContentProvider {
 
     private static final String DATABASE_NAME = "launcher.db";
 
-    private static final int DATABASE_VERSION = 8;
+    private static final int DATABASE_VERSION = 11;
 
     public static final String AUTHORITY = "org.adw.launcher2.settings";
 
     public static final String TABLE_FAVORITES = "favorites";
+    /** Icon blobs of the favorites, stored once per content hash. */
+    static final String TABLE_ICONS = "icons";
+    private static final String ICONS_HASH = "hash";
+    private static final String ICONS_DATA = "data";
     public static final String PARAMETER_NOTIFY = "notify";
 
+    /**
+     * Sent to our own package when favorites were changed through a notifying uri.
+     * The ids of the changed rows are in {@link #EXTRA_INSERTED}, {@link #EXTRA_UPDATED}
+     * and {@link #EXTRA_DELETED}, without any of them everything should be reloaded.
+     */
+    public static final String ACTION_FAVORITES_CHANGED = "org.adw.launcher2.favorites_changed";
+    public static final String EXTRA_INSERTED = "inserted";
+    public static final String EXTRA_UPDATED = "updated";
+    public static final String EXTRA_DELETED = "deleted";
+
+    /** With more changed rows than this the receivers are told to reload instead. */
+    private static final int MAX_CHANGED_IDS = 64;
+
     /**
      * {@link Uri} triggered at any registered {@link android.database.ContentObserver} when
      * {@link AppWidgetHost#deleteHost()} is called during database creation.
@@ -74,6 +95,30 @@ public class LauncherProvider extends ContentProvider {
     static final Uri CONTENT_APPWIDGET_RESET_URI =
             Uri.parse("content://" + AUTHORITY + "/appWidgetReset");
 
+    private static final String FAVORITES_WITH_ICONS = TABLE_FAVORITES + " LEFT OUTER JOIN " +
+            TABLE_ICONS + " ON (" + TABLE_FAVORITES + "." + Favorites.ICON_HASH + "=" +
+            TABLE_ICONS + "." + ICONS_HASH + ")";
+
+    private static final String[] FAVORITES_COLUMNS = new String[] {
+        Favorites._ID, Favorites.TITLE, Favorites.INTENT, Favorites.CONTAINER,
+        Favorites.SCREEN, Favorites.CELLX, Favorites.CELLY, Favorites.SPANX, Favorites.SPANY,
+        Favorites.ITEM_TYPE, Favorites.APPWIDGET_ID, "isShortcut",
+        Favorites.ICON_TYPE, Favorites.ICON_PACKAGE, Favorites.ICON_RESOURCE,
+        Favorites.URI, Favorites.DISPLAY_MODE, Favorites.ICON_HASH, Favorites.COMPONENT_NAME
+    };
+
+    /** Reads of the favorites get their icon column from the icons table. */
+    private static final HashMap<String, String> sFavoritesProjectionMap;
+    static {
+        sFavoritesProjectionMap = new HashMap<String, String>();
+        for (String column : FAVORITES_COLUMNS) {
+            sFavoritesProjectionMap.put(column,
+                    TABLE_FAVORITES + "." + column + " AS " + column);
+        }
+        sFavoritesProjectionMap.put(Favorites.ICON,
+                TABLE_ICONS + "." + ICONS_DATA + " AS " + Favorites.ICON);
+    }
+
     private SQLiteOpenHelper mOpenHelper;
 
     @Override
@@ -98,7 +143,12 @@ public class LauncherProvider extends ContentProvider {
 
         SqlArguments args = new SqlArguments(uri, selection, selectionArgs);
         SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
-        qb.setTables(args.table);
+        if (TABLE_FAVORITES.equals(args.table)) {
+            qb.setTables(FAVORITES_WITH_ICONS);
+            qb.setProjectionMap(sFavoritesProjectionMap);
+        } else {
+            qb.setTables(args.table);
+        }
 
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         Cursor result = qb.query(db, projection, args.where, args.args, null, null, sortOrder);
@@ -112,11 +162,18 @@ public class LauncherProvider extends ContentProvider {
         SqlArguments args = new SqlArguments(uri);
 
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
-        final long rowId = db.insert(args.table, null, initialValues);
+        final long rowId;
+        db.beginTransaction();
+        try {
+            rowId = db.insert(args.table, null, prepareValues(db, args.table, initialValues));
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
         if (rowId <= 0) return null;
 
         uri = ContentUris.withAppendedId(uri, rowId);
-        sendNotify(uri);
+        sendNotify(uri, args.table, EXTRA_INSERTED, new long[] { rowId });
 
         return uri;
     }
@@ -126,18 +183,24 @@ public class LauncherProvider extends ContentProvider {
         SqlArguments args = new SqlArguments(uri);
 
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        final int numValues = values.length;
+        long[] ids = numValues <= MAX_CHANGED_IDS ? new long[numValues] : null;
         db.beginTransaction();
         try {
-            int numValues = values.length;
             for (int i = 0; i < numValues; i++) {
-                if (db.insert(args.table, null, values[i]) < 0) return 0;
+                final long rowId = db.insert(args.table, null,
+                        prepareValues(db, args.table, values[i]));
+                if (rowId < 0) {
+                    return 0;
+                }
+                if (ids != null) ids[i] = rowId;
             }
             db.setTransactionSuccessful();
         } finally {
             db.endTransaction();
         }
 
-        sendNotify(uri);
+        sendNotify(uri, args.table, EXTRA_INSERTED, ids);
         return values.length;
     }
 
@@ -146,8 +209,17 @@ public class LauncherProvider extends ContentProvider {
         SqlArguments args = new SqlArguments(uri, selection, selectionArgs);
 
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
-        int count = db.delete(args.table, args.where, args.args);
-        if (count > 0) sendNotify(uri);
+        long[] ids = null;
+        int count;
+        db.beginTransaction();
+        try {
+            if (isNotify(uri)) ids = queryChangedIds(db, args);
+            count = db.delete(args.table, args.where, args.args);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        if (count > 0) sendNotify(uri, args.table, EXTRA_DELETED, ids);
 
         return count;
     }
@@ -157,16 +229,139 @@ public class LauncherProvider extends ContentProvider {
         SqlArguments args = new SqlArguments(uri, selection, selectionArgs);
 
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
-        int count = db.update(args.table, values, args.where, args.args);
-        if (count > 0) sendNotify(uri);
+        long[] ids = null;
+        int count;
+        db.beginTransaction();
+        try {
+            if (isNotify(uri)) ids = queryChangedIds(db, args);
+            count = db.update(args.table, prepareValues(db, args.table, values),
+                    args.where, args.args);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        if (count > 0) sendNotify(uri, args.table, EXTRA_UPDATED, ids);
 
         return count;
     }
 
-    private void sendNotify(Uri uri) {
+    /**
+     * The ids of the favorites the statement is about to change, null if there are
+     * too many of them or it's not about favorites.
+     */
+    private static long[] queryChangedIds(SQLiteDatabase db, SqlArguments args) {
+        if (!TABLE_FAVORITES.equals(args.table))
+            return null;
+        Cursor c = db.query(args.table, new String[] { Favorites._ID }, args.where, args.args,
+                null, null, null);
+        try {
+            if (c.getCount() > MAX_CHANGED_IDS)
+                return null;
+            long[] ids = new long[c.getCount()];
+            int i = 0;
+            while (c.moveToNext()) {
+                ids[i++] = c.getLong(0);
+            }
+            return ids;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Applies the whole batch in one transaction.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            ContentProviderResult[] results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+            return results;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Fills in the derived columns of favorites rows: the icon blob moves into the
+     * icons table and the row keeps its hash, the component of the intent is copied
+     * into its own column.
+     *
+     * @return the values to write into the table
+     */
+    private static ContentValues prepareValues(SQLiteDatabase db, String table,
+            ContentValues values) {
+        if (!TABLE_FAVORITES.equals(table) || values == null) {
+            return values;
+        }
+        final boolean hasIcon = values.containsKey(Favorites.ICON);
+        final boolean hasIntent = values.containsKey(Favorites.INTENT);
+        if (!hasIcon && !hasIntent) {
+            return values;
+        }
+        final ContentValues result = new ContentValues(values);
+        if (hasIcon) {
+            storeIcon(db, result);
+        }
+        if (hasIntent) {
+            result.put(Favorites.COMPONENT_NAME,
+                    getComponentName(values.getAsString(Favorites.INTENT)));
+        }
+        return result;
+    }
+
+    private static void storeIcon(SQLiteDatabase db, ContentValues result) {
+        final byte[] data = result.getAsByteArray(Favorites.ICON);
+        result.remove(Favorites.ICON);
+        if (data == null) {
+            result.putNull(Favorites.ICON_HASH);
+        } else {
+            final String hash = IconPool.hash(data);
+            db.execSQL("INSERT OR IGNORE INTO " + TABLE_ICONS + " (" + ICONS_HASH + ", " +
+                    ICONS_DATA + ") VALUES (?, ?)", new Object[] { hash, data });
+            result.put(Favorites.ICON_HASH, hash);
+        }
+    }
+
+    /**
+     * @return the flattened component of the intent or null if it has none.
+     */
+    static String getComponentName(String intentUri) {
+        if (intentUri == null) {
+            return null;
+        }
+        try {
+            final ComponentName component = Intent.parseUri(intentUri, 0).getComponent();
+            return component != null ? component.flattenToString() : null;
+        } catch (URISyntaxException e) {
+            return null;
+        }
+    }
+
+    private static boolean isNotify(Uri uri) {
         String notify = uri.getQueryParameter(PARAMETER_NOTIFY);
-        if (notify == null || "true".equals(notify)) {
-            getContext().getContentResolver().notifyChange(uri, null);
+        return notify == null || "true".equals(notify);
+    }
+
+    /**
+     * @param extra the kind of change of the favorites with the given ids, null ids
+     *        if they are not known.
+     */
+    private void sendNotify(Uri uri, String table, String extra, long[] ids) {
+        if (!isNotify(uri))
+            return;
+        final Context context = getContext();
+        context.getContentResolver().notifyChange(uri, null);
+        if (TABLE_FAVORITES.equals(table)) {
+            // ContentObservers don't get to know which rows changed before Jelly Bean
+            final Intent intent = new Intent(ACTION_FAVORITES_CHANGED);
+            intent.setPackage(context.getPackageName());
+            if (ids != null)
+                intent.putExtra(extra, ids);
+            context.sendBroadcast(intent);
         }
     }
 
@@ -220,8 +415,12 @@ public class LauncherProvider extends ContentProvider {
                     "iconResource TEXT," +
                     "icon BLOB," +
                     "uri TEXT," +
-                    "displayMode INTEGER" +
+                    "displayMode INTEGER," +
+                    "iconHash TEXT," +
+                    "componentName TEXT" +
                     ");");
+            db.execSQL("CREATE INDEX favorites_componentName ON favorites (componentName);");
+            createIconStore(db);
 
             // Database was just created, so wipe any previous widgets
             if (mAppWidgetHost != null) {
@@ -315,7 +514,8 @@ public class LauncherProvider extends ContentProvider {
             try {
                 int numValues = rows.length;
                 for (i = 0; i < numValues; i++) {
-                    if (db.insert(TABLE_FAVORITES, null, rows[i]) < 0) {
+                    if (db.insert(TABLE_FAVORITES, null,
+                        prepareValues(db, TABLE_FAVORITES, rows[i])) < 0) {
                         return 0;
                     } else {
                         total++;
@@ -401,13 +601,163 @@ public class LauncherProvider extends ContentProvider {
                 version = 8;
             }
 
+            if (version < 9) {
+                // Version 9 stores each distinct icon once, keyed by its content hash.
+                if (moveIconsToStore(db)) {
+                    version = 9;
+                }
+            }
+
+            if (version < 10) {
+                // Version 10 keeps the component of the intent in an indexed column.
+                if (addComponentColumn(db)) {
+                    version = 10;
+                }
+            }
+
+            if (version < 11) {
+                // The default workspace of version 10 was written without the components.
+                if (fillComponentColumn(db)) {
+                    version = 11;
+                }
+            }
+
             if (version != DATABASE_VERSION) {
                 Log.w(TAG, "Destroying all old data.");
                 db.execSQL("DROP TABLE IF EXISTS " + TABLE_FAVORITES);
+                db.execSQL("DROP TABLE IF EXISTS " + TABLE_ICONS);
                 onCreate(db);
             }
         }
 
+        /**
+         * Creates the icons table and the triggers that drop icons once no favorite
+         * references them anymore.
+         */
+        private void createIconStore(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + TABLE_ICONS + " (" +
+                    ICONS_HASH + " TEXT PRIMARY KEY," +
+                    ICONS_DATA + " BLOB" +
+                    ");");
+            db.execSQL("CREATE INDEX favorites_iconHash ON favorites (iconHash);");
+
+            final String dropUnused = " BEGIN DELETE FROM " + TABLE_ICONS +
+                    " WHERE " + ICONS_HASH + "=OLD.iconHash AND NOT EXISTS" +
+                    " (SELECT 1 FROM favorites WHERE iconHash=OLD.iconHash); END;";
+            db.execSQL("CREATE TRIGGER favorites_icon_delete AFTER DELETE ON favorites" +
+                    " WHEN OLD.iconHash IS NOT NULL" + dropUnused);
+            db.execSQL("CREATE TRIGGER favorites_icon_update" +
+                    " AFTER UPDATE OF iconHash ON favorites" +
+                    " WHEN OLD.iconHash IS NOT NULL AND" +
+                    " (NEW.iconHash IS NULL OR NEW.iconHash != OLD.iconHash)" + dropUnused);
+        }
+
+        private boolean addComponentColumn(SQLiteDatabase db) {
+            db.beginTransaction();
+            try {
+                db.execSQL("ALTER TABLE favorites ADD COLUMN componentName TEXT;");
+                db.execSQL("CREATE INDEX favorites_componentName ON favorites (componentName);");
+                if (!fillComponentColumn(db)) {
+                    return false;
+                }
+                db.setTransactionSuccessful();
+                return true;
+            } catch (SQLException ex) {
+                Log.w(TAG, "Problem while adding the component column", ex);
+                return false;
+            } finally {
+                db.endTransaction();
+            }
+        }
+
+        /**
+         * Copies the component of the intent into the column of the rows missing it.
+         */
+        private boolean fillComponentColumn(SQLiteDatabase db) {
+            db.beginTransaction();
+            Cursor c = null;
+            SQLiteStatement update = null;
+            try {
+                update = db.compileStatement("UPDATE favorites "
+                        + "SET componentName=? WHERE _id=?");
+                c = db.rawQuery("SELECT _id, intent FROM favorites WHERE intent IS NOT NULL"
+                        + " AND componentName IS NULL", null);
+                final int idIndex = c.getColumnIndexOrThrow(Favorites._ID);
+                final int intentIndex = c.getColumnIndexOrThrow(Favorites.INTENT);
+
+                while (c.moveToNext()) {
+                    final String component = getComponentName(c.getString(intentIndex));
+                    if (component == null) {
+                        continue;
+                    }
+                    update.bindString(1, component);
+                    update.bindLong(2, c.getLong(idIndex));
+                    update.execute();
+                }
+                db.setTransactionSuccessful();
+                return true;
+            } catch (SQLException ex) {
+                Log.w(TAG, "Problem while filling the component column", ex);
+                return false;
+            } finally {
+                db.endTransaction();
+                if (update != null) {
+                    update.close();
+                }
+                if (c != null) {
+                    c.close();
+                }
+            }
+        }
+
+        private boolean moveIconsToStore(SQLiteDatabase db) {
+            db.beginTransaction();
+            Cursor c = null;
+            SQLiteStatement insert = null;
+            SQLiteStatement update = null;
+            try {
+                db.execSQL("ALTER TABLE favorites ADD COLUMN iconHash TEXT;");
+                createIconStore(db);
+
+                insert = db.compileStatement("INSERT OR IGNORE INTO " + TABLE_ICONS +
+                        " (" + ICONS_HASH + ", " + ICONS_DATA + ") VALUES (?, ?)");
+                update = db.compileStatement("UPDATE favorites "
+                        + "SET icon=NULL, iconHash=? WHERE _id=?");
+
+                c = db.rawQuery("SELECT _id, icon FROM favorites WHERE icon IS NOT NULL",
+                        null);
+                final int idIndex = c.getColumnIndexOrThrow(Favorites._ID);
+                final int iconIndex = c.getColumnIndexOrThrow(Favorites.ICON);
+
+                while (c.moveToNext()) {
+                    final byte[] data = c.getBlob(iconIndex);
+                    final String hash = IconPool.hash(data);
+                    insert.bindString(1, hash);
+                    insert.bindBlob(2, data);
+                    insert.execute();
+                    update.bindString(1, hash);
+                    update.bindLong(2, c.getLong(idIndex));
+                    update.execute();
+                }
+                db.setTransactionSuccessful();
+                return true;
+            } catch (SQLException ex) {
+                Log.w(TAG, "Problem while moving icons to the icon store", ex);
+                return false;
+            } finally {
+                db.endTransaction();
+                if (insert != null) {
+                    insert.close();
+                }
+                if (update != null) {
+                    update.close();
+                }
+                if (c != null) {
+                    c.close();
+                }
+            }
+        }
+
         private boolean updateContactsShortcuts(SQLiteDatabase db) {
             Cursor c = null;
             final String selectWhere = buildOrWhereString(Favorites.ITEM_TYPE,
@@ -497,7 +847,7 @@ public class LauncherProvider extends ContentProvider {
                     byte[] data = c.getBlob(iconIndex);
                     try {
                         Bitmap bitmap = Utilities.resampleIconBitmap(
-                                BitmapFactory.decodeByteArray(data, 0, data.length),
+                                IconCodec.decode(data),
                                 mContext);
                         if (bitmap != null) {
                             update.bindLong(1, id);
@@ -706,7 +1056,7 @@ public class LauncherProvider extends ContentProvider {
             values.put(Favorites.ITEM_TYPE, Favorites.ITEM_TYPE_SHORTCUT);
             values.put(Favorites.SPANX, 1);
             values.put(Favorites.SPANY, 1);
-            db.insert(TABLE_FAVORITES, null, values);
+            db.insert(TABLE_FAVORITES, null, prepareValues(db, TABLE_FAVORITES, values));
 
             return true;
         }
@@ -772,7 +1122,7 @@ public class LauncherProvider extends ContentProvider {
                 values.put(Favorites.SPANX, spanX);
                 values.put(Favorites.SPANY, spanY);
                 values.put(Favorites.APPWIDGET_ID, appWidgetId);
-                db.insert(TABLE_FAVORITES, null, values);
+                db.insert(TABLE_FAVORITES, null, prepareValues(db, TABLE_FAVORITES, values));
 
                 allocatedAppWidgets = true;
 
@@ -816,7 +1166,7 @@ public class LauncherProvider extends ContentProvider {
             values.put(Favorites.ICON_PACKAGE, mContext.getPackageName());
             values.put(Favorites.ICON_RESOURCE, r.getResourceName(iconResId));
 
-            db.insert(TABLE_FAVORITES, null, values);
+            db.insert(TABLE_FAVORITES, null, prepareValues(db, TABLE_FAVORITES, values));
 
             return true;
         }
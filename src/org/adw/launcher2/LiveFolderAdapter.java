@@ -19,6 +19,7 @@ package org.adw.launcher2;
 import java.lang.ref.SoftReference;
 import java.net.URISyntaxException;
 import java.util.HashMap;
+import java.util.HashSet;
 
 import android.content.Context;
 import android.content.Intent;
@@ -44,7 +45,10 @@ class LiveFolderAdapter extends CursorAdapter {
     private final HashMap<String, Drawable> mIcons = new HashMap<String, Drawable>();
     private final HashMap<Long, SoftReference<Drawable>> mCustomIcons =
             new HashMap<Long, SoftReference<Drawable>>();
+    // rows waiting for their icon, cancelled by cleanup()
+    private final HashSet<ViewHolder> mPendingIcons = new HashSet<ViewHolder>();
     private final Launcher mLauncher;
+    private Drawable mPlaceholderIcon;
 
     LiveFolderAdapter(Launcher launcher, LiveFolderInfo info, Cursor cursor) {
         super(launcher, cursor, true);
@@ -93,6 +97,10 @@ class LiveFolderAdapter extends CursorAdapter {
         final ViewHolder holder = (ViewHolder) view.getTag();
 
         holder.id = cursor.getLong(holder.idIndex);
+        if (holder.iconRequest != null) {
+            // recycled, the pending icon belongs to another row
+            cancelIconRequest(holder);
+        }
         final Drawable icon = loadIcon(context, cursor, holder);
 
         holder.name.setText(cursor.getString(holder.nameIndex));
@@ -100,9 +108,7 @@ class LiveFolderAdapter extends CursorAdapter {
         if (!mIsList) {
             holder.name.setCompoundDrawablesWithIntrinsicBounds(null, icon, null, null);
         } else {
-            final boolean hasIcon = icon != null;
-            holder.icon.setVisibility(hasIcon ? View.VISIBLE : View.GONE);
-            if (hasIcon) holder.icon.setImageDrawable(icon);
+            setListIcon(holder, icon);
 
             if (holder.descriptionIndex != -1) {
                 final String description = cursor.getString(holder.descriptionIndex);
@@ -128,7 +134,17 @@ class LiveFolderAdapter extends CursorAdapter {
         }
     }
 
-    private Drawable loadIcon(Context context, Cursor cursor, ViewHolder holder) {
+    private void setListIcon(ViewHolder holder, Drawable icon) {
+        final boolean hasIcon = icon != null;
+        holder.icon.setVisibility(hasIcon ? View.VISIBLE : View.GONE);
+        if (hasIcon) holder.icon.setImageDrawable(icon);
+    }
+
+    /**
+     * Returns the icon if we have it already, otherwise starts loading it in the background
+     * and returns a placeholder.
+     */
+    private Drawable loadIcon(Context context, Cursor cursor, final ViewHolder holder) {
         Drawable icon = null;
         byte[] data = null;
 
@@ -142,39 +158,108 @@ class LiveFolderAdapter extends CursorAdapter {
                 icon = reference.get();
             }
 
-            if (icon == null) {
-                final Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0, data.length);
-                final Bitmap resampled = Utilities.resampleIconBitmap(bitmap, mLauncher);
-                if (bitmap != resampled) {
-                    // If we got back a different object, we don't need the old one any more.
-                    bitmap.recycle();
-                }
-                icon = new FastBitmapDrawable(resampled);
-                mCustomIcons.put(holder.id, new SoftReference<Drawable>(icon));
+            if (icon != null) {
+                icon = icon.getConstantState().newDrawable();
+            } else {
+                final byte[] blob = data;
+                final long id = holder.id;
+                holder.iconRequest = mLauncher.getIconLoader().submit(new IconLoader.Job() {
+                    public Bitmap load() {
+                        final Bitmap bitmap = BitmapFactory.decodeByteArray(blob, 0, blob.length);
+                        if (bitmap == null)
+                            return null;
+                        final Bitmap resampled = Utilities.resampleIconBitmap(bitmap, mLauncher);
+                        if (bitmap != resampled) {
+                            // If we got back a different object, we don't need the old one any more.
+                            bitmap.recycle();
+                        }
+                        return resampled;
+                    }
+                }, new IconLoader.Callback() {
+                    public void onIconLoaded(Bitmap bitmap) {
+                        holder.iconRequest = null;
+                        mPendingIcons.remove(holder);
+                        if (bitmap == null)
+                            return;
+                        final Drawable loaded = new FastBitmapDrawable(bitmap);
+                        mCustomIcons.put(id, new SoftReference<Drawable>(loaded));
+                        setLoadedIcon(holder, loaded.getConstantState().newDrawable());
+                    }
+                });
+                mPendingIcons.add(holder);
+                icon = getPlaceholderIcon();
             }
         } else if (holder.iconResourceIndex != -1 && holder.iconPackageIndex != -1) {
             final String resource = cursor.getString(holder.iconResourceIndex);
             icon = mIcons.get(resource);
-            if (icon == null) {
-                try {
-                    final PackageManager packageManager = context.getPackageManager();
-                    Resources resources = packageManager.getResourcesForApplication(
-                            cursor.getString(holder.iconPackageIndex));
-                    final int id = resources.getIdentifier(resource,
-                            null, null);
-                    icon = new FastBitmapDrawable(
-                            Utilities.createIconBitmap(resources.getDrawable(id), mLauncher));
-                    mIcons.put(resource, icon);
-                } catch (Exception e) {
-                    // Ignore
-                }
+            if (icon != null) {
+                icon = icon.getConstantState().newDrawable();
+            } else {
+                final PackageManager packageManager = context.getPackageManager();
+                final String packageName = cursor.getString(holder.iconPackageIndex);
+                holder.iconRequest = mLauncher.getIconLoader().submit(new IconLoader.Job() {
+                    public Bitmap load() {
+                        try {
+                            Resources resources = packageManager.getResourcesForApplication(
+                                    packageName);
+                            final int id = resources.getIdentifier(resource,
+                                    null, null);
+                            return Utilities.createIconBitmap(resources.getDrawable(id), mLauncher);
+                        } catch (Exception e) {
+                            // Ignore
+                            return null;
+                        }
+                    }
+                }, new IconLoader.Callback() {
+                    public void onIconLoaded(Bitmap bitmap) {
+                        holder.iconRequest = null;
+                        mPendingIcons.remove(holder);
+                        if (bitmap == null)
+                            return;
+                        final Drawable loaded = new FastBitmapDrawable(bitmap);
+                        mIcons.put(resource, loaded);
+                        setLoadedIcon(holder, loaded.getConstantState().newDrawable());
+                    }
+                });
+                mPendingIcons.add(holder);
+                icon = getPlaceholderIcon();
             }
         }
 
         return icon;
     }
 
+    private void setLoadedIcon(ViewHolder holder, Drawable icon) {
+        if (!mIsList) {
+            holder.name.setCompoundDrawablesWithIntrinsicBounds(null, icon, null, null);
+        } else {
+            setListIcon(holder, icon);
+        }
+    }
+
+    /**
+     * A drawable can only be in one view, every row gets its own copy.
+     */
+    private Drawable getPlaceholderIcon() {
+        if (mPlaceholderIcon == null) {
+            mPlaceholderIcon = new FastBitmapDrawable(mLauncher.getIconCache().getDefaultIcon());
+        }
+        return mPlaceholderIcon.getConstantState().newDrawable();
+    }
+
+    private void cancelIconRequest(ViewHolder holder) {
+        holder.iconRequest.cancel();
+        holder.iconRequest = null;
+        mPendingIcons.remove(holder);
+    }
+
     void cleanup() {
+        for (ViewHolder holder : mPendingIcons) {
+            holder.iconRequest.cancel();
+            holder.iconRequest = null;
+        }
+        mPendingIcons.clear();
+
         for (Drawable icon : mIcons.values()) {
             icon.setCallback(null);
         }
@@ -205,6 +290,7 @@ class LiveFolderAdapter extends CursorAdapter {
 
         Intent intent;
         long id;
+        IconLoader.Request iconRequest;
         boolean useBaseIntent;
 
         int idIndex;
@@ -0,0 +1,172 @@
+package org.adw.launcher2;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Map from primitive long keys to objects, without boxing the keys or allocating an
+ * entry per mapping.  Open addressing with linear probing, null values are not
+ * allowed.  Not thread safe.
+ */
+final class LongHashMap<V> {
+    private static final int MIN_CAPACITY = 8;
+
+    private long[] mKeys;
+    // a slot is in use if its value isn't null
+    private Object[] mValues;
+    private int mSize;
+
+    LongHashMap() {
+        this(MIN_CAPACITY);
+    }
+
+    LongHashMap(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        // keep the table at most 3/4 full
+        while (capacity * 3 < expectedSize * 4) {
+            capacity <<= 1;
+        }
+        mKeys = new long[capacity];
+        mValues = new Object[capacity];
+    }
+
+    LongHashMap(LongHashMap<? extends V> other) {
+        mKeys = other.mKeys.clone();
+        mValues = other.mValues.clone();
+        mSize = other.mSize;
+    }
+
+    private static int hash(long key) {
+        final int h = (int) (key ^ (key >>> 32)) * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+    private int indexOf(long key) {
+        final int mask = mKeys.length - 1;
+        int i = hash(key) & mask;
+        while (mValues[i] != null) {
+            if (mKeys[i] == key)
+                return i;
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    boolean containsKey(long key) {
+        return indexOf(key) >= 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    V get(long key) {
+        final int i = indexOf(key);
+        return i >= 0 ? (V) mValues[i] : null;
+    }
+
+    /**
+     * @return the previous value for the key, null if there was none.
+     */
+    @SuppressWarnings("unchecked")
+    V put(long key, V value) {
+        if (value == null)
+            throw new NullPointerException("null values are not allowed");
+        if ((mSize + 1) * 4 > mKeys.length * 3)
+            resize(mKeys.length << 1);
+
+        final int mask = mKeys.length - 1;
+        int i = hash(key) & mask;
+        while (mValues[i] != null) {
+            if (mKeys[i] == key) {
+                final V old = (V) mValues[i];
+                mValues[i] = value;
+                return old;
+            }
+            i = (i + 1) & mask;
+        }
+        mKeys[i] = key;
+        mValues[i] = value;
+        mSize++;
+        return null;
+    }
+
+    void putAll(LongHashMap<? extends V> other) {
+        final long[] keys = other.mKeys;
+        final Object[] values = other.mValues;
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != null) {
+                @SuppressWarnings("unchecked")
+                final V value = (V) values[i];
+                put(keys[i], value);
+            }
+        }
+    }
+
+    /**
+     * @return the removed value, null if there was none.
+     */
+    @SuppressWarnings("unchecked")
+    V remove(long key) {
+        int i = indexOf(key);
+        if (i < 0)
+            return null;
+        final V old = (V) mValues[i];
+        mValues[i] = null;
+        mSize--;
+
+        // Move the entries after the hole back if the hole breaks their probe chain
+        final int mask = mKeys.length - 1;
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            if (mValues[j] == null)
+                break;
+            final int home = hash(mKeys[j]) & mask;
+            final boolean reachable = i <= j ? (i < home && home <= j) : (i < home || home <= j);
+            if (reachable)
+                continue;
+            mKeys[i] = mKeys[j];
+            mValues[i] = mValues[j];
+            mValues[j] = null;
+            i = j;
+        }
+        return old;
+    }
+
+    void clear() {
+        Arrays.fill(mValues, null);
+        mSize = 0;
+    }
+
+    /**
+     * @return a copy of the values, in no particular order.
+     */
+    ArrayList<V> values() {
+        final ArrayList<V> result = new ArrayList<V>(mSize);
+        for (Object value : mValues) {
+            if (value != null) {
+                @SuppressWarnings("unchecked")
+                final V v = (V) value;
+                result.add(v);
+            }
+        }
+        return result;
+    }
+
+    private void resize(int capacity) {
+        final long[] keys = mKeys;
+        final Object[] values = mValues;
+        mKeys = new long[capacity];
+        mValues = new Object[capacity];
+        mSize = 0;
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != null) {
+                @SuppressWarnings("unchecked")
+                final V value = (V) values[i];
+                put(keys[i], value);
+            }
+        }
+    }
+}
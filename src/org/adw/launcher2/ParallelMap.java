@@ -0,0 +1,130 @@
+package org.adw.launcher2;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.Process;
+
+/**
+ * Applies a function to every item of a list using all cores, the results keep the
+ * order of the input.  Used for the expensive per app work (loading labels, rendering
+ * and compressing icons) when many apps are handled at once, and for decoding the
+ * workspace.
+ *
+ * The helper threads are shared by all callers and go away when idle for a while.
+ */
+public final class ParallelMap {
+
+    /** Don't bother starting threads for less items than this. */
+    private static final int MIN_PARALLEL_ITEMS = 4;
+
+    /** How long idle helper threads are kept around (s). */
+    private static final long KEEP_ALIVE = 30;
+
+    private static ThreadPoolExecutor sExecutor;
+
+    public interface Function<I, O> {
+        /** Runs on an arbitrary thread, must not touch shared state without locking. */
+        O apply(I input);
+    }
+
+    private ParallelMap() {
+    }
+
+    private static synchronized ThreadPoolExecutor getExecutor() {
+        if (sExecutor == null) {
+            final int helpers = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+            // No queue: a caller that finds no idle helper does the work itself.
+            sExecutor = new ThreadPoolExecutor(0, helpers, KEEP_ALIVE, TimeUnit.SECONDS,
+                    new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                        private final AtomicInteger mCount = new AtomicInteger();
+
+                        public Thread newThread(Runnable r) {
+                            return new Thread(r, "parallel-map-" + mCount.incrementAndGet());
+                        }
+                    });
+        }
+        return sExecutor;
+    }
+
+    /**
+     * @return the results in the order of items.  If the calling thread is interrupted
+     *         the work stops early, the interrupt is kept and the items that weren't
+     *         done yet get null.
+     */
+    public static <I, O> List<O> map(final List<I> items, final Function<I, O> function) {
+        final int count = items.size();
+        final int threads = Math.min(Runtime.getRuntime().availableProcessors(),
+                count / MIN_PARALLEL_ITEMS);
+
+        final Object[] results = new Object[count];
+        final AtomicInteger next = new AtomicInteger();
+        final Runnable worker = new Runnable() {
+            public void run() {
+                int i;
+                // only the calling thread ever gets interrupted
+                while (!Thread.currentThread().isInterrupted()
+                        && (i = next.getAndIncrement()) < count) {
+                    results[i] = function.apply(items.get(i));
+                }
+            }
+        };
+
+        if (threads <= 1) {
+            worker.run();
+        } else {
+            // the caller waits for the helpers, let them run at its priority
+            final int priority = Process.getThreadPriority(Process.myTid());
+            final Runnable helper = new Runnable() {
+                public void run() {
+                    Process.setThreadPriority(priority);
+                    worker.run();
+                }
+            };
+            final ThreadPoolExecutor executor = getExecutor();
+            final List<Future<?>> futures = new ArrayList<Future<?>>(threads - 1);
+            for (int t = 1; t < threads; t++) {
+                try {
+                    futures.add(executor.submit(helper));
+                } catch (RejectedExecutionException e) {
+                    // all helpers are busy with other callers, we'll do it ourselves
+                    break;
+                }
+            }
+            // the calling thread does its share too
+            worker.run();
+            try {
+                if (Thread.currentThread().isInterrupted())
+                    throw new InterruptedException();
+                for (Future<?> f : futures) {
+                    f.get();
+                }
+            } catch (InterruptedException e) {
+                // let the helpers stop after their current item
+                next.set(count);
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                final Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException)
+                    throw (RuntimeException) cause;
+                throw new RuntimeException(cause);
+            }
+        }
+
+        final ArrayList<O> result = new ArrayList<O>(count);
+        for (int i = 0; i < count; i++) {
+            @SuppressWarnings("unchecked")
+            final O value = (O) results[i];
+            result.add(value);
+        }
+        return result;
+    }
+}
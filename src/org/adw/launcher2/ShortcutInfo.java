@@ -65,6 +65,13 @@ public class ShortcutInfo extends IconItemInfo implements ItemInfo.ItemPackage {
         return mIcon;
     }
 
+    @Override
+    boolean needsIconLoad(IconCache iconCache) {
+        if ((mIcon != null && mTitle != null) || intent == null)
+            return false;
+        return !iconCache.isCached(intent.getComponent());
+    }
+
     /**
      * Creates the application intent based on a component name and various launch flags.
      * Sets {@link #itemType} to {@link LauncherSettings.BaseLauncherColumns#ITEM_TYPE_APPLICATION}.
@@ -17,6 +17,7 @@
 package org.adw.launcher2;
 
 import java.net.URISyntaxException;
+import java.util.ArrayList;
 
 import org.adw.launcher2.settings.LauncherSettings;
 
@@ -25,7 +26,6 @@ import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
 import android.database.Cursor;
-import android.net.Uri;
 import android.widget.Toast;
 
 
@@ -52,16 +52,13 @@ public class UninstallShortcutReceiver extends BroadcastReceiver {
             final int intentIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites.INTENT);
             final int idIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites._ID);
 
-            boolean changed = false;
+            final ArrayList<String> ids = new ArrayList<String>();
 
             try {
                 while (c.moveToNext()) {
                     try {
                         if (intent.filterEquals(Intent.parseUri(c.getString(intentIndex), 0))) {
-                            final long id = c.getLong(idIndex);
-                            final Uri uri = LauncherSettings.Favorites.getContentUri(id, false);
-                            cr.delete(uri, null, null);
-                            changed = true;
+                            ids.add(String.valueOf(c.getLong(idIndex)));
                             if (!duplicate) {
                                 break;
                             }
@@ -74,8 +71,17 @@ public class UninstallShortcutReceiver extends BroadcastReceiver {
                 c.close();
             }
 
-            if (changed) {
-                cr.notifyChange(LauncherSettings.Favorites.CONTENT_URI, null);
+            if (!ids.isEmpty()) {
+                // one statement, so the launcher is told once with the ids of all rows
+                final StringBuilder where = new StringBuilder(LauncherSettings.Favorites._ID);
+                where.append(" IN (");
+                for (int i = 0; i < ids.size(); i++) {
+                    where.append(i > 0 ? ",?" : "?");
+                }
+                where.append(')');
+                cr.delete(LauncherSettings.Favorites.CONTENT_URI, where.toString(),
+                        ids.toArray(new String[ids.size()]));
+
                 Toast.makeText(context, context.getString(R.string.shortcut_uninstalled, name),
                         Toast.LENGTH_SHORT).show();
             }
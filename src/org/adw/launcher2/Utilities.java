@@ -16,10 +16,11 @@
 
 package org.adw.launcher2;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
+import java.io.File;
 
 import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BlurMaskFilter;
@@ -35,11 +36,11 @@ import android.graphics.Typeface;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.graphics.drawable.PaintDrawable;
+import android.os.Build;
 import android.text.StaticLayout;
 import android.text.TextPaint;
 import android.text.Layout.Alignment;
 import android.util.DisplayMetrics;
-import android.util.Log;
 
 
 /**
@@ -48,23 +49,49 @@ import android.util.Log;
 public final class Utilities {
     private static final boolean TEXT_BURN = false;
 
-    private static int sIconWidth = -1;
+    private static volatile int sIconWidth = -1;
     private static int sIconHeight = -1;
     private static int sIconTextureWidth = -1;
     private static int sIconTextureHeight = -1;
+    private static float sDensity;
+    private static final Object sInitLock = new Object();
 
-    private static final Paint sBlurPaint = new Paint();
-    private static final Paint sGlowColorPressedPaint = new Paint();
-    private static final Paint sGlowColorFocusedPaint = new Paint();
-    private static final Paint sDisabledPaint = new Paint();
-    private static final Rect sOldBounds = new Rect();
-    private static final Canvas sCanvas = new Canvas();
-
-    static {
-        sCanvas.setDrawFilter(new PaintFlagsDrawFilter(Paint.DITHER_FLAG,
-                Paint.FILTER_BITMAP_FLAG));
+    /**
+     * Everything needed to render an icon.  Every thread gets its own so icons can be
+     * rendered in parallel without a global lock.
+     */
+    private static final class RenderState {
+        final Paint blurPaint = new Paint();
+        final Paint glowColorPressedPaint = new Paint();
+        final Paint glowColorFocusedPaint = new Paint();
+        final Paint disabledPaint = new Paint();
+        final Rect oldBounds = new Rect();
+        final Canvas canvas = new Canvas();
+
+        RenderState() {
+            canvas.setDrawFilter(new PaintFlagsDrawFilter(Paint.DITHER_FLAG,
+                    Paint.FILTER_BITMAP_FLAG));
+
+            blurPaint.setMaskFilter(new BlurMaskFilter(5 * sDensity, BlurMaskFilter.Blur.NORMAL));
+            glowColorPressedPaint.setColor(0xffffc300);
+            //TODO: glowColorPressedPaint.setMaskFilter(TableMaskFilter.CreateClipTable(0, 30));
+            glowColorFocusedPaint.setColor(0xffff8e00);
+            //TODO: glowColorFocusedPaint.setMaskFilter(TableMaskFilter.CreateClipTable(0, 30));
+
+            ColorMatrix cm = new ColorMatrix();
+            cm.setSaturation(0.2f);
+            disabledPaint.setColorFilter(new ColorMatrixColorFilter(cm));
+            disabledPaint.setAlpha(0x88);
+        }
     }
 
+    private static final ThreadLocal<RenderState> sRenderState = new ThreadLocal<RenderState>() {
+        @Override
+        protected RenderState initialValue() {
+            return new RenderState();
+        }
+    };
+
     static Bitmap centerToFit(Bitmap bitmap, int width, int height, Context context) {
         final int bitmapWidth = bitmap.getWidth();
         final int bitmapHeight = bitmap.getHeight();
@@ -94,89 +121,87 @@ public final class Utilities {
      * of two sized ARGB_8888 bitmap that can be used as a gl texture.
      */
     public static Bitmap createIconBitmap(Drawable icon, Context context) {
-        synchronized (sCanvas) { // we share the statics :-(
-            if (sIconWidth == -1) {
-                initStatics(context);
-            }
-
-            int width = sIconWidth;
-            int height = sIconHeight;
-
-            if (icon instanceof PaintDrawable) {
-                PaintDrawable painter = (PaintDrawable) icon;
-                painter.setIntrinsicWidth(width);
-                painter.setIntrinsicHeight(height);
-            } else if (icon instanceof BitmapDrawable) {
-                // Ensure the bitmap has a density.
-                BitmapDrawable bitmapDrawable = (BitmapDrawable) icon;
-                Bitmap bitmap = bitmapDrawable.getBitmap();
-                if (bitmap.getDensity() == Bitmap.DENSITY_NONE) {
-                    bitmapDrawable.setTargetDensity(context.getResources().getDisplayMetrics());
-                }
+        if (sIconWidth == -1) {
+            initStatics(context);
+        }
+        final RenderState state = sRenderState.get();
+
+        int width = sIconWidth;
+        int height = sIconHeight;
+
+        if (icon instanceof PaintDrawable) {
+            PaintDrawable painter = (PaintDrawable) icon;
+            painter.setIntrinsicWidth(width);
+            painter.setIntrinsicHeight(height);
+        } else if (icon instanceof BitmapDrawable) {
+            // Ensure the bitmap has a density.
+            BitmapDrawable bitmapDrawable = (BitmapDrawable) icon;
+            Bitmap bitmap = bitmapDrawable.getBitmap();
+            if (bitmap.getDensity() == Bitmap.DENSITY_NONE) {
+                bitmapDrawable.setTargetDensity(context.getResources().getDisplayMetrics());
             }
-            int sourceWidth = icon.getIntrinsicWidth();
-            int sourceHeight = icon.getIntrinsicHeight();
-
-            if (sourceWidth > 0 && sourceWidth > 0) {
-                // There are intrinsic sizes.
-                if (width < sourceWidth || height < sourceHeight) {
-                    // It's too big, scale it down.
-                    final float ratio = (float) sourceWidth / sourceHeight;
-                    if (sourceWidth > sourceHeight) {
-                        height = (int) (width / ratio);
-                    } else if (sourceHeight > sourceWidth) {
-                        width = (int) (height * ratio);
-                    }
-                } else if (sourceWidth < width && sourceHeight < height) {
-                    // It's small, use the size they gave us.
-                    width = sourceWidth;
-                    height = sourceHeight;
+        }
+        int sourceWidth = icon.getIntrinsicWidth();
+        int sourceHeight = icon.getIntrinsicHeight();
+
+        if (sourceWidth > 0 && sourceWidth > 0) {
+            // There are intrinsic sizes.
+            if (width < sourceWidth || height < sourceHeight) {
+                // It's too big, scale it down.
+                final float ratio = (float) sourceWidth / sourceHeight;
+                if (sourceWidth > sourceHeight) {
+                    height = (int) (width / ratio);
+                } else if (sourceHeight > sourceWidth) {
+                    width = (int) (height * ratio);
                 }
+            } else if (sourceWidth < width && sourceHeight < height) {
+                // It's small, use the size they gave us.
+                width = sourceWidth;
+                height = sourceHeight;
             }
+        }
 
-            // no intrinsic size --> use default size
-            int textureWidth = sIconTextureWidth;
-            int textureHeight = sIconTextureHeight;
+        // no intrinsic size --> use default size
+        int textureWidth = sIconTextureWidth;
+        int textureHeight = sIconTextureHeight;
 
-            final Bitmap bitmap = Bitmap.createBitmap(textureWidth, textureHeight,
-                    Bitmap.Config.ARGB_8888);
-            final Canvas canvas = sCanvas;
-            canvas.setBitmap(bitmap);
+        final Bitmap bitmap = Bitmap.createBitmap(textureWidth, textureHeight,
+                Bitmap.Config.ARGB_8888);
+        final Canvas canvas = state.canvas;
+        canvas.setBitmap(bitmap);
 
-            final int left = (textureWidth-width) / 2;
-            final int top = (textureHeight-height) / 2;
+        final int left = (textureWidth-width) / 2;
+        final int top = (textureHeight-height) / 2;
 
-            sOldBounds.set(icon.getBounds());
-            icon.setBounds(left, top, left+width, top+height);
-            icon.draw(canvas);
-            icon.setBounds(sOldBounds);
+        state.oldBounds.set(icon.getBounds());
+        icon.setBounds(left, top, left+width, top+height);
+        icon.draw(canvas);
+        icon.setBounds(state.oldBounds);
 
-            return bitmap;
-        }
+        return bitmap;
     }
 
     static void drawSelectedAllAppsBitmap(Canvas dest, int destWidth, int destHeight,
             boolean pressed, Bitmap src) {
-        synchronized (sCanvas) { // we share the statics :-(
-            if (sIconWidth == -1) {
-                // We can't have gotten to here without src being initialized, which
-                // comes from this file already.  So just assert.
-                //initStatics(context);
-                throw new RuntimeException("Assertion failed: Utilities not initialized");
-            }
+        if (sIconWidth == -1) {
+            // We can't have gotten to here without src being initialized, which
+            // comes from this file already.  So just assert.
+            //initStatics(context);
+            throw new RuntimeException("Assertion failed: Utilities not initialized");
+        }
+        final RenderState state = sRenderState.get();
 
-            dest.drawColor(0, PorterDuff.Mode.CLEAR);
+        dest.drawColor(0, PorterDuff.Mode.CLEAR);
 
-            int[] xy = new int[2];
-            Bitmap mask = src.extractAlpha(sBlurPaint, xy);
+        int[] xy = new int[2];
+        Bitmap mask = src.extractAlpha(state.blurPaint, xy);
 
-            float px = (destWidth - src.getWidth()) / 2;
-            float py = (destHeight - src.getHeight()) / 2;
-            dest.drawBitmap(mask, px + xy[0], py + xy[1],
-                    pressed ? sGlowColorPressedPaint : sGlowColorFocusedPaint);
+        float px = (destWidth - src.getWidth()) / 2;
+        float py = (destHeight - src.getHeight()) / 2;
+        dest.drawBitmap(mask, px + xy[0], py + xy[1],
+                pressed ? state.glowColorPressedPaint : state.glowColorFocusedPaint);
 
-            mask.recycle();
-        }
+        mask.recycle();
     }
 
     /**
@@ -191,53 +216,47 @@ public final class Utilities {
      *         thumbnail could not be created.
      */
     static Bitmap resampleIconBitmap(Bitmap bitmap, Context context) {
-        synchronized (sCanvas) { // we share the statics :-(
-            if (sIconWidth == -1) {
-                initStatics(context);
-            }
+        if (sIconWidth == -1) {
+            initStatics(context);
+        }
 
-            if (bitmap.getWidth() == sIconWidth && bitmap.getHeight() == sIconHeight) {
-                return bitmap;
-            } else {
-                return createIconBitmap(new BitmapDrawable(bitmap), context);
-            }
+        if (bitmap.getWidth() == sIconWidth && bitmap.getHeight() == sIconHeight) {
+            return bitmap;
+        } else {
+            return createIconBitmap(new BitmapDrawable(bitmap), context);
         }
     }
 
     static Bitmap drawDisabledBitmap(Bitmap bitmap, Context context) {
-        synchronized (sCanvas) { // we share the statics :-(
-            if (sIconWidth == -1) {
-                initStatics(context);
-            }
-            final Bitmap disabled = Bitmap.createBitmap(bitmap.getWidth(), bitmap.getHeight(),
-                    Bitmap.Config.ARGB_8888);
-            final Canvas canvas = sCanvas;
-            canvas.setBitmap(disabled);
+        if (sIconWidth == -1) {
+            initStatics(context);
+        }
+        final RenderState state = sRenderState.get();
+        final Bitmap disabled = Bitmap.createBitmap(bitmap.getWidth(), bitmap.getHeight(),
+                Bitmap.Config.ARGB_8888);
+        final Canvas canvas = state.canvas;
+        canvas.setBitmap(disabled);
 
-            canvas.drawBitmap(bitmap, 0.0f, 0.0f, sDisabledPaint);
+        canvas.drawBitmap(bitmap, 0.0f, 0.0f, state.disabledPaint);
 
-            return disabled;
-        }
+        return disabled;
     }
 
     private static void initStatics(Context context) {
-        final Resources resources = context.getResources();
-        final DisplayMetrics metrics = resources.getDisplayMetrics();
-        final float density = metrics.density;
-
-        sIconWidth = sIconHeight = (int) resources.getDimension(android.R.dimen.app_icon_size);
-        sIconTextureWidth = sIconTextureHeight = sIconWidth + 2;
-
-        sBlurPaint.setMaskFilter(new BlurMaskFilter(5 * density, BlurMaskFilter.Blur.NORMAL));
-        sGlowColorPressedPaint.setColor(0xffffc300);
-        //TODO: sGlowColorPressedPaint.setMaskFilter(TableMaskFilter.CreateClipTable(0, 30));
-        sGlowColorFocusedPaint.setColor(0xffff8e00);
-      //TODO: sGlowColorFocusedPaint.setMaskFilter(TableMaskFilter.CreateClipTable(0, 30));
-
-        ColorMatrix cm = new ColorMatrix();
-        cm.setSaturation(0.2f);
-        sDisabledPaint.setColorFilter(new ColorMatrixColorFilter(cm));
-        sDisabledPaint.setAlpha(0x88);
+        synchronized (sInitLock) {
+            if (sIconWidth != -1) {
+                return;
+            }
+            final Resources resources = context.getResources();
+            final DisplayMetrics metrics = resources.getDisplayMetrics();
+            sDensity = metrics.density;
+
+            final int size = (int) resources.getDimension(android.R.dimen.app_icon_size);
+            sIconHeight = size;
+            sIconTextureWidth = sIconTextureHeight = size + 2;
+            // written last, it publishes the others
+            sIconWidth = size;
+        }
     }
 
     static class BubbleText {
@@ -368,18 +387,22 @@ public final class Utilities {
     }
 
     public static byte[] flattenBitmap(Bitmap bitmap) {
-        // Try go guesstimate how much space the icon will take when serialized
-        // to avoid unnecessary allocations/copies during the write.
-        int size = bitmap.getWidth() * bitmap.getHeight() * 4;
-        ByteArrayOutputStream out = new ByteArrayOutputStream(size);
-        try {
-            bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
-            out.flush();
-            out.close();
-            return out.toByteArray();
-        } catch (IOException e) {
-            Log.w("Favorite", "Could not write icon");
-            return null;
+        return IconCodec.encode(bitmap);
+    }
+
+    /**
+     * When the package was installed or updated the last time.
+     *
+     * @param appInfo used below 2.3 if given, otherwise the one of the PackageInfo.
+     */
+    public static long getLastUpdateTime(PackageInfo pi, ApplicationInfo appInfo) {
+        if (Build.VERSION.SDK_INT >= 9) {
+            return pi.lastUpdateTime;
         }
+        // below 2.3 the apk modification time is the best we have
+        final ApplicationInfo ai = appInfo != null ? appInfo : pi.applicationInfo;
+        if (ai != null && ai.sourceDir != null)
+            return new File(ai.sourceDir).lastModified();
+        return 0;
     }
 }
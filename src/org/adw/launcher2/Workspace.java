@@ -1518,6 +1518,41 @@ public class Workspace extends WidgetSpace implements DropTarget, DragSource, Dr
         }
     }
 
+    /**
+     * Remove the views of the items with the given ids right away.
+     */
+    void removeItemsById(HashSet<Long> ids) {
+        final ArrayList<View> childrenToRemove = new ArrayList<View>();
+        final int count = getChildCount();
+        for (int i = 0; i < count; i++) {
+            final CellLayout layout = (CellLayout) getChildAt(i);
+            childrenToRemove.clear();
+
+            int childCount = layout.getChildCount();
+            for (int j = 0; j < childCount; j++) {
+                final View view = layout.getChildAt(j);
+                final Object tag = view.getTag();
+                if (tag instanceof ItemInfo && ids.contains(((ItemInfo) tag).id)) {
+                    childrenToRemove.add(view);
+                }
+            }
+
+            childCount = childrenToRemove.size();
+            for (int j = 0; j < childCount; j++) {
+                View child = childrenToRemove.get(j);
+                layout.removeViewInLayout(child);
+                if (child instanceof DropTarget) {
+                    mDragController.removeDropTarget((DropTarget)child);
+                }
+            }
+
+            if (childCount > 0) {
+                layout.requestLayout();
+                layout.invalidate();
+            }
+        }
+    }
+
     void updateShortcuts(List<ShortcutInfo> apps) {
         final int count = getChildCount();
         for (int i = 0; i < count; i++) {
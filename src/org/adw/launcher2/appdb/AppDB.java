@@ -1,54 +1,110 @@
 package org.adw.launcher2.appdb;
 
-import java.net.URISyntaxException;
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 
 import org.adw.launcher2.IconCache;
+import org.adw.launcher2.IconPool;
 import org.adw.launcher2.ItemInfo;
+import org.adw.launcher2.LauncherProvider;
+import org.adw.launcher2.ParallelMap;
 import org.adw.launcher2.ShortcutInfo;
 import org.adw.launcher2.Utilities;
 import org.adw.launcher2.settings.LauncherSettings;
 
 import android.content.BroadcastReceiver;
 import android.content.ComponentName;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.OperationApplicationException;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.database.Cursor;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.RemoteException;
+import android.util.Log;
 
 public class AppDB extends BroadcastReceiver {
 	private static final long INVALID_ID = -1;
-	private static final String PACKAGE_SEPERATOR = "/";
+	// stay well below SQLITE_MAX_VARIABLE_NUMBER (999)
+	private static final int MAX_SQL_ARGS = 500;
 	public static final String INTENT_DB_CHANGED = "org.adw.launcher2.app_db_changed";
 	public static final String EXTRA_ADDED = "added";
 	public static final String EXTRA_DELETED_PACKAGE = "deleted_package";
 	public static final String EXTRA_DELETED_COMPONENT_NAMES = "deleted_cnames";
 	public static final String EXTRA_UPDATED = "updated";
 
+	private static final String TAG = "Launcher.AppDB";
+
+	/** Launches are written to the database at most this late (ms). */
+	private static final long LAUNCH_WRITE_DELAY = 30 * 1000;
+
 	private Context mContext;
 	private final IconCache mIconCache;
 
+	// Authoritative launch counters, guarded by itself
 	private final HashMap<String, LaunchInfo> mLaunchInfos = new HashMap<String, LaunchInfo>();
+	private boolean mLaunchInfosLoaded = false;
+	private boolean mWriteScheduled = false;
+
+	// Package events are synced this late, so bursts get merged (ms)
+	private static final long DRAIN_DELAY = 2000;
+	private static final int DRAIN_BATCH_SIZE = 32;
+	// a queued package that failed to sync this often is dropped
+	private static final int MAX_PENDING_ATTEMPTS = 3;
+	private static final int ICON_FILL_BATCH_SIZE = 32;
+	private static boolean sDrainScheduled;
+	private static final Object sPackagesLock = new Object();
+
+	// Serializes icon page loads, so a page is only queried once
+	private static final Object sIconPageLock = new Object();
+
+	// Launch counters get written to the database on this thread, shared by all instances
+	private static Handler sWriter;
+	private final Handler mWriter;
+	private final Runnable mWriteLaunchInfos = new Runnable() {
+		public void run() {
+			writeLaunchInfos();
+		}
+	};
 
 	public AppDB(Context context, IconCache iconCache) {
 		mContext = context;
 		mIconCache = iconCache;
+		mWriter = getWriter();
+	}
+
+	private static synchronized Handler getWriter() {
+		if (sWriter == null) {
+			HandlerThread writerThread = new HandlerThread("appdb-writer",
+					Process.THREAD_PRIORITY_BACKGROUND);
+			writerThread.start();
+			sWriter = new Handler(writerThread.getLooper());
+		}
+		return sWriter;
 	}
 
 	@Deprecated
 	public AppDB() {
 		mIconCache = null;
+		mWriter = null;
 		// Only for Broadcast reciever!
 	}
 
@@ -83,18 +139,30 @@ public class AppDB extends BroadcastReceiver {
 
 	private void incrementLaunchCounter(ComponentName name) {
 		String cnStr = name.flattenToString();
-		if (mLaunchInfos.containsKey(cnStr)) {
-			// Update local
-			mLaunchInfos.get(cnStr).launched();
+		synchronized (mLaunchInfos) {
+			LaunchInfo li = mLaunchInfos.get(cnStr);
+			if (li == null) {
+				// the stored count is added once it has been read
+				li = new LaunchInfo();
+				mLaunchInfos.put(cnStr, li);
+			}
+			li.launched();
+			if (mWriter != null && !mWriteScheduled) {
+				mWriteScheduled = true;
+				mWriter.postDelayed(mWriteLaunchInfos, LAUNCH_WRITE_DELAY);
+			}
 		}
+	}
 
-		ContentResolver cr = mContext.getContentResolver();
-		Cursor c = cr.query( // Update within the DB
-				AppInfos.APP_LAUNCHED_URI.buildUpon()
-					.appendEncodedPath(cnStr).build(),
-				null, null, null, null);
-		if (c != null)
-			c.close();
+	/**
+	 * Write pending launch counters to the database now, e.g. when the launcher
+	 * gets paused.  Returns right away, the write happens in the background.
+	 */
+	public void flushLaunchInfos() {
+		if (mWriter == null)
+			return;
+		mWriter.removeCallbacks(mWriteLaunchInfos);
+		mWriter.post(mWriteLaunchInfos);
 	}
 
 	public int getLaunchCounter(ShortcutInfo info) {
@@ -107,43 +175,165 @@ public class AppDB extends BroadcastReceiver {
 		return -1;
 	}
 
+	/**
+	 * Served from memory only, so it's cheap enough for sorting on the UI thread.  The
+	 * counters are read by {@link #getApps()} or {@link #loadLaunchInfos()}, on the
+	 * loader thread.  Apps without a counter count as never launched.
+	 */
 	public int getLaunchCounter(ComponentName name) {
-		LaunchInfo info = getLaunchInfo(name);
-		if (info != null)
-			return info.getCount();
-		return -1;
+		String cnStr = name.flattenToString();
+		synchronized (mLaunchInfos) {
+			LaunchInfo info = mLaunchInfos.get(cnStr);
+			return info != null ? info.getCount() : 0;
+		}
 	}
 
-	private LaunchInfo getLaunchInfo(ComponentName name) {
-		String cnStr = name.flattenToString();
-		if (!mLaunchInfos.containsKey(cnStr)) {
-			ContentResolver cr = mContext.getContentResolver();
-			Cursor c = cr.query(AppInfos.CONTENT_URI,
-					new String[] {
-						AppInfos.LAUNCH_COUNT,
-						AppInfos.LAST_LAUNCHED },
-					AppInfos.COMPONENT_NAME + "=?",
-					new String[] { cnStr }, null);
-			try {
-				c.moveToFirst();
+	/**
+	 * Read the launch counters of all apps in one query, so later lookups don't
+	 * have to ask the database app by app.
+	 */
+	public void loadLaunchInfos() {
+		synchronized (mLaunchInfos) {
+			if (mLaunchInfosLoaded)
+				return;
+		}
+		ContentResolver cr = mContext.getContentResolver();
+		Cursor c = cr.query(AppInfos.CONTENT_URI,
+				new String[] {
+					AppInfos.COMPONENT_NAME,
+					AppInfos.LAUNCH_COUNT,
+					AppInfos.LAST_LAUNCHED },
+				null, null, null);
+		if (c == null)
+			return;
+		try {
+			final int cnIdx = c.getColumnIndex(AppInfos.COMPONENT_NAME);
+			final int countIdx = c.getColumnIndex(AppInfos.LAUNCH_COUNT);
+			final int lastIdx = c.getColumnIndex(AppInfos.LAST_LAUNCHED);
+			synchronized (mLaunchInfos) {
+				while (c.moveToNext()) {
+					putStoredLaunchInfo(c.getString(cnIdx),
+							(int)c.getLong(countIdx), c.getLong(lastIdx));
+				}
+				mLaunchInfosLoaded = true;
+			}
+		}
+		finally {
+			c.close();
+		}
+	}
 
-				if (!c.isAfterLast()) {
-					LaunchInfo li = new LaunchInfo(
-							(int)c.getLong(c.getColumnIndex(AppInfos.LAUNCH_COUNT)),
-							c.getLong(c.getColumnIndex(AppInfos.LAST_LAUNCHED)));
+	/**
+	 * Read the stored counter of one app and merge it into the table.
+	 *
+	 * @return the launch info or null if the app is not in the database.
+	 */
+	private LaunchInfo readLaunchInfo(String cnStr) {
+		ContentResolver cr = mContext.getContentResolver();
+		Cursor c = cr.query(AppInfos.CONTENT_URI,
+				new String[] {
+					AppInfos.LAUNCH_COUNT,
+					AppInfos.LAST_LAUNCHED },
+				AppInfos.COMPONENT_NAME + "=?",
+				new String[] { cnStr }, null);
+		if (c == null)
+			return null;
+		try {
+			if (!c.moveToFirst())
+				return null;
+			synchronized (mLaunchInfos) {
+				return putStoredLaunchInfo(cnStr,
+						(int)c.getLong(c.getColumnIndex(AppInfos.LAUNCH_COUNT)),
+						c.getLong(c.getColumnIndex(AppInfos.LAST_LAUNCHED)));
+			}
+		}
+		finally {
+			c.close();
+		}
+	}
 
-					mLaunchInfos.put(cnStr, li);
-					return li;
-				}
-				else
-					return null;
+	/**
+	 * Merge a counter read from the database, caller holds mLaunchInfos.
+	 */
+	private LaunchInfo putStoredLaunchInfo(String cnStr, int launchCount, long lastLaunched) {
+		LaunchInfo li = mLaunchInfos.get(cnStr);
+		if (li == null) {
+			li = new LaunchInfo(launchCount, lastLaunched);
+			mLaunchInfos.put(cnStr, li);
+		} else {
+			li.stored(launchCount, lastLaunched);
+		}
+		return li;
+	}
+
+	/**
+	 * Drop the counters of apps whose rows were deleted.  A row inserted for the app
+	 * later starts over, the old counter must not be served or written back to it.
+	 */
+	public void forgetLaunchInfos(String[] componentNames) {
+		synchronized (mLaunchInfos) {
+			for (String cnStr : componentNames) {
+				mLaunchInfos.remove(cnStr);
 			}
-			finally {
-				c.close();
+		}
+	}
+
+	/**
+	 * Writes all pending launch counters in one transaction, runs on the writer thread.
+	 */
+	private void writeLaunchInfos() {
+		synchronized (mLaunchInfos) {
+			mWriteScheduled = false;
+		}
+		loadLaunchInfos();
+
+		// apps launched before their stored counter was known
+		final ArrayList<String> unknown = new ArrayList<String>();
+		synchronized (mLaunchInfos) {
+			for (Map.Entry<String, LaunchInfo> e : mLaunchInfos.entrySet()) {
+				if (e.getValue().getPending() > 0 && !e.getValue().isStored())
+					unknown.add(e.getKey());
+			}
+		}
+		for (String cnStr : unknown) {
+			readLaunchInfo(cnStr);
+		}
+
+		final ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>();
+		final ArrayList<LaunchInfo> written = new ArrayList<LaunchInfo>();
+		final ArrayList<Integer> launches = new ArrayList<Integer>();
+		synchronized (mLaunchInfos) {
+			for (Map.Entry<String, LaunchInfo> e : mLaunchInfos.entrySet()) {
+				final LaunchInfo li = e.getValue();
+				if (li.getPending() == 0 || !li.isStored())
+					continue;
+				ops.add(ContentProviderOperation.newUpdate(AppInfos.CONTENT_URI)
+						.withValue(AppInfos.LAUNCH_COUNT, li.getCount())
+						.withValue(AppInfos.LAST_LAUNCHED, li.getLastLaunched())
+						.withSelection(AppInfos.COMPONENT_NAME + "=?",
+								new String[] { e.getKey() })
+						.build());
+				written.add(li);
+				launches.add(li.getPending());
 			}
+		}
+		if (ops.isEmpty())
+			return;
 
+		try {
+			mContext.getContentResolver().applyBatch(AppDBProvider.AUTHORITY, ops);
+		} catch (RemoteException e) {
+			Log.w(TAG, "Could not write launch counters", e);
+			return;
+		} catch (OperationApplicationException e) {
+			Log.w(TAG, "Could not write launch counters", e);
+			return;
+		}
+		synchronized (mLaunchInfos) {
+			for (int i = 0; i < written.size(); i++) {
+				written.get(i).written(launches.get(i));
+			}
 		}
-		return mLaunchInfos.get(cnStr);
 	}
 
 	@Override
@@ -163,188 +353,454 @@ public class AppDB extends BroadcastReceiver {
                 return;
             }
 
-            if (Intent.ACTION_PACKAGE_CHANGED.equals(action)) {
-                PackageChanged(packageName);
-            } else if (Intent.ACTION_PACKAGE_REMOVED.equals(action)) {
-                if (!replacing) {
-                    PackageRemoved(packageName);
-                }
-                // else, we are replacing the package, so a PACKAGE_ADDED will be sent
+            if (Intent.ACTION_PACKAGE_REMOVED.equals(action) && replacing) {
+                // we are replacing the package, so a PACKAGE_ADDED will be sent
                 // later, we will update the package at this time
-            } else if (Intent.ACTION_PACKAGE_ADDED.equals(action)) {
-                if (!replacing) {
-                	PackageAdded(packageName);
-                } else {
-                    PackageChanged(packageName);
-                }
+                return;
             }
+            // Added, changed and removed all come down to syncing the package with
+            // the PackageManager.  Only queue it here, rendering icons on the
+            // receiver's thread risks an ANR when many packages get updated at once.
+            enqueuePackage(packageName);
+            scheduleDrain(context.getApplicationContext());
         }
 	}
 
-	private void PackageAdded(String aPackage) {
-		final PackageManager packageManager = mContext.getPackageManager();
-        AddResolveInfos(packageManager, findActivitiesForPackage(packageManager, aPackage));
+	private void enqueuePackage(String packageName) {
+		ContentValues values = new ContentValues();
+		values.put(PendingPackages.PACKAGE, packageName);
+		// an earlier event for the package is replaced, see AppDBProvider
+		mContext.getContentResolver().insert(PendingPackages.CONTENT_URI, values);
 	}
 
-	private void PackageChanged(String aPackage) {
-		final PackageManager packageManager = mContext.getPackageManager();
+	private static synchronized void scheduleDrain(final Context appContext) {
+		if (sDrainScheduled)
+			return;
+		sDrainScheduled = true;
+		getWriter().postDelayed(new Runnable() {
+			public void run() {
+				synchronized (AppDB.class) {
+					sDrainScheduled = false;
+				}
+				new AppDB(appContext, null).processPendingPackages();
+			}
+		}, DRAIN_DELAY);
+	}
 
-		List<ExtResolveInfo> addedApps = new LinkedList<ExtResolveInfo>();
-		List<DBInfo> removedApps = new LinkedList<DBInfo>();
-		HashMap<ExtResolveInfo, DBInfo> updatedApps = new HashMap<ExtResolveInfo, DBInfo>();
+	/**
+	 * Catches up on what happened while the launcher wasn't running: whatever a dead
+	 * receiver left in the queue, package changes we missed entirely and icons that
+	 * were never rendered.  Runs on the background writer thread, a batch at a time,
+	 * so launch counters and package events get their turn in between.
+	 */
+	public static void scheduleMaintenance(Context context, IconCache iconCache) {
+		final AppDB appDB = new AppDB(context.getApplicationContext(), iconCache);
+		appDB.mWriter.post(appDB.new Maintenance());
+	}
 
-        List<ExtResolveInfo> pmInfos = toExtInfos(findActivitiesForPackage(packageManager, aPackage));
-        ContentResolver cr = mContext.getContentResolver();
-        Cursor c = queryAppsFromPackage(
-				new String[] {AppInfos.ID, AppInfos.COMPONENT_NAME, AppInfos.TITLE_CHANGED, AppInfos.ICON_CHANGED},
-				aPackage);
-        List<DBInfo> dbInfos = toDBInfos(c);
-        c.close();
-
-        // find removed / updated apps
-        for(DBInfo dbi : dbInfos) {
-        	boolean found = false;
-        	for (ExtResolveInfo pmi : pmInfos) {
-	        	if (pmi.getComponentName().equals(dbi.getComponentName())) {
-	        		found = true;
-	        		updatedApps.put(pmi, dbi); // update dbi from pmi later
-	        		break;
-	        	}
-        	}
-        	if (!found) {
-        		removedApps.add(dbi); // app is no longer installed!
-        	}
-        }
-        for (ExtResolveInfo pmi : pmInfos) {
-        	if (updatedApps.containsKey(pmi))
-        		continue; // alread in updateable apps
-        	addedApps.add(pmi); // not updated, not removed so it must be added ;-)
-        }
-        Intent modelIntent = new Intent(INTENT_DB_CHANGED);
-        boolean sendIntent = removedApps.size() > 0 || updatedApps.size() > 0;
-
-        // Ok we got all needed infos so lets start the party:
-        AddResolveInfos(packageManager, addedApps); // adding is easy!
-
-    	// removing is a little harder:
-    	DestroyItems(removedApps);
-    	if (sendIntent)
-    		modelIntent.putExtra(EXTRA_DELETED_COMPONENT_NAMES, getPackageNames(removedApps));
-
-    	// ok then updating is left:
-    	long[] updatedIds = new long[updatedApps.size()];
-    	int i = 0;
-    	for (ExtResolveInfo pmInfo : updatedApps.keySet()) {
-    		DBInfo dbinfo = updatedApps.get(pmInfo);
-
-    		boolean iconChanged = dbinfo.isIconChanged();
-    		boolean titleChanged = dbinfo.isTitleChanged();
-    		if ( !titleChanged || !iconChanged )
-    		{
-        		ResolveInfo rInfo = pmInfo.getResolveInfo();
-                Bitmap icon = Utilities.createIconBitmap(
-                        rInfo.loadIcon(packageManager), mContext);
-
-                ContentValues values = new ContentValues();
-                if ( !titleChanged )
-                {
-                    values.put(AppInfos.TITLE, rInfo.loadLabel(packageManager).toString());
-                }
-
-                if ( !iconChanged )
-                {
-                    ItemInfo.writeBitmap(values, icon);
-                }
-
-        		cr.update(AppInfos.CONTENT_URI, values, AppInfos.ID + " = ?",
-        				new String[] { String.valueOf(dbinfo.getId()) } );
-        		updatedIds[i++] = dbinfo.getId();
-    		}
-    	}
-    	if (i > 0)
-    		modelIntent.putExtra(EXTRA_UPDATED, updatedIds);
+	private class Maintenance implements Runnable {
+		private static final int STEP_PENDING = 0;
+		private static final int STEP_RECONCILE = 1;
+		private static final int STEP_ICONS = 2;
+		private static final int STEP_DONE = 3;
 
-        // Notify Model:
-        mContext.sendBroadcast(modelIntent);
-	}
+		private int mStep = STEP_PENDING;
+		private long mPendingId = 0;
+		private String[] mChanged;
+		private int mNextChanged;
+		private final IconFill mFill = new IconFill();
 
-	private List<ExtResolveInfo> toExtInfos(List<ResolveInfo> list) {
-		List<ExtResolveInfo> result = new ArrayList<ExtResolveInfo>(list.size());
-		for(ResolveInfo info : list) {
-			result.add(new ExtResolveInfo(info));
+		public void run() {
+			boolean more;
+			try {
+				more = runStep();
+			} catch (RuntimeException e) {
+				// skip the rest of the step, the others may still get through
+				Log.e(TAG, "Maintenance step " + mStep + " failed", e);
+				more = false;
+			}
+			if (!more)
+				mStep++;
+			if (mStep < STEP_DONE)
+				mWriter.post(this);
 		}
-		return result;
-	}
 
-	private List<DBInfo> toDBInfos(Cursor c) {
-		List<DBInfo> result = new LinkedList<DBInfo>();
-		if (c.moveToFirst()) {
-			while(!c.isAfterLast()) {
-				result.add(new DBInfo(c));
-				c.moveToNext();
+		/**
+		 * @return whether the current step has more to do.
+		 */
+		private boolean runStep() {
+			boolean more;
+			switch (mStep) {
+				case STEP_PENDING: {
+					final long lastId = processPendingBatch(mPendingId);
+					more = lastId != INVALID_ID;
+					if (more)
+						mPendingId = lastId;
+					break;
+				}
+				case STEP_RECONCILE:
+					if (mChanged == null)
+						mChanged = findChangedPackages();
+					if (mNextChanged < mChanged.length) {
+						final int count = Math.min(DRAIN_BATCH_SIZE, mChanged.length - mNextChanged);
+						final String[] batch = new String[count];
+						System.arraycopy(mChanged, mNextChanged, batch, 0, count);
+						PackagesChanged(batch);
+						mNextChanged += count;
+					}
+					more = mNextChanged < mChanged.length;
+					break;
+				case STEP_ICONS:
+					more = fillMissingIconsBatch(mFill);
+					break;
+				default:
+					more = false;
+					break;
 			}
+			return more;
 		}
-		return result;
 	}
 
-	private void PackageRemoved(String aPackage) {
-	    List<DBInfo> infos = new LinkedList<DBInfo>();
-	    Cursor c = queryAppsFromPackage(new String[] { AppInfos.ID, AppInfos.COMPONENT_NAME }, aPackage);
-	    try {
-	    	c.moveToFirst();
-			c.getColumnIndex(AppInfos.ID);
-            c.getColumnIndex(AppInfos.COMPONENT_NAME);
-            c.getColumnIndex(AppInfos.TITLE_CHANGED);
-            c.getColumnIndex(AppInfos.ICON_CHANGED);
-			while(!c.isAfterLast()) {
-				DBInfo info = new DBInfo(c);
-				infos.add(info);
-				c.moveToNext();
+	/**
+	 * Syncs the queued packages with the PackageManager, in batches.  Whatever is left
+	 * in the queue when the process dies, or failed to sync, is picked up by the next
+	 * call.
+	 */
+	public void processPendingPackages() {
+		long lastId = 0;
+		while ((lastId = processPendingBatch(lastId)) != INVALID_ID) {
+			// until the end of the queue
+		}
+	}
+
+	/**
+	 * Syncs the next batch of queued packages after afterId.  A queued package is only
+	 * dropped once it has been synced, or failed MAX_PENDING_ATTEMPTS times so a broken
+	 * one can't stay in the queue for good.
+	 *
+	 * @return the last id looked at, INVALID_ID if there is nothing after afterId or we
+	 *         got interrupted.
+	 */
+	private long processPendingBatch(long afterId) {
+		final ContentResolver cr = mContext.getContentResolver();
+		ArrayList<Long> ids = new ArrayList<Long>(DRAIN_BATCH_SIZE);
+		ArrayList<String> packages = new ArrayList<String>(DRAIN_BATCH_SIZE);
+		ArrayList<Integer> attempts = new ArrayList<Integer>(DRAIN_BATCH_SIZE);
+		Cursor c = cr.query(PendingPackages.CONTENT_URI,
+				new String[] { PendingPackages.ID, PendingPackages.PACKAGE,
+						PendingPackages.ATTEMPTS },
+				PendingPackages.ID + ">?", new String[] { String.valueOf(afterId) },
+				PendingPackages.ID + " LIMIT " + DRAIN_BATCH_SIZE);
+		if (c == null)
+			return INVALID_ID;
+		try {
+			while (c.moveToNext()) {
+				ids.add(c.getLong(0));
+				packages.add(c.getString(1));
+				attempts.add(c.getInt(2));
 			}
 		} finally {
 			c.close();
 		}
+		if (ids.isEmpty())
+			return INVALID_ID;
+		final long lastId = ids.get(ids.size() - 1);
+
+		// Events that came in meanwhile replaced their rows with new ids and stay
+		if (syncPending(packages.toArray(new String[packages.size()]))) {
+			deletePending(ids);
+			return lastId;
+		}
+		if (Thread.currentThread().isInterrupted())
+			return INVALID_ID;
+
+		// one of them may be broken, don't let it hold up the others
+		ArrayList<Long> done = new ArrayList<Long>(ids.size());
+		for (int i = 0; i < ids.size(); i++) {
+			if (syncPending(new String[] { packages.get(i) })) {
+				done.add(ids.get(i));
+			} else if (Thread.currentThread().isInterrupted()) {
+				break;
+			} else if (attempts.get(i) + 1 >= MAX_PENDING_ATTEMPTS) {
+				// give up, reconcile() catches up if it ever works again
+				Log.w(TAG, "Dropping " + packages.get(i) + " after " + MAX_PENDING_ATTEMPTS
+						+ " failed syncs");
+				done.add(ids.get(i));
+			} else {
+				ContentValues values = new ContentValues();
+				values.put(PendingPackages.ATTEMPTS, attempts.get(i) + 1);
+				cr.update(PendingPackages.CONTENT_URI, values, PendingPackages.ID + "=?",
+						new String[] { String.valueOf(ids.get(i)) });
+			}
+		}
+		deletePending(done);
+		return Thread.currentThread().isInterrupted() ? INVALID_ID : lastId;
+	}
 
-		DestroyItems( infos);
-		// notify the LauncherModel too!
-		Intent deleteIntent = new Intent(INTENT_DB_CHANGED);
-		// remove all items from the package!
-		deleteIntent.putExtra(EXTRA_DELETED_PACKAGE, aPackage);
-		mContext.sendBroadcast(deleteIntent);
+	private boolean syncPending(String[] packages) {
+		try {
+			return PackagesChanged(packages);
+		} catch (RuntimeException e) {
+			Log.e(TAG, "Could not sync " + Arrays.toString(packages), e);
+			return false;
+		}
 	}
 
-	private void DestroyItems(List<DBInfo> infos) {
-		if (infos.size() > 0) {
-			String deleteFlt = getAppIdFilter(getIds(infos));
-			ContentResolver cr = mContext.getContentResolver();
+	private void deletePending(ArrayList<Long> ids) {
+		if (ids.isEmpty())
+			return;
+		final String[] args = new String[ids.size()];
+		for (int i = 0; i < args.length; i++) {
+			args[i] = String.valueOf(ids.get(i));
+		}
+		mContext.getContentResolver().delete(PendingPackages.CONTENT_URI,
+				PendingPackages.ID + " IN (" + getPlaceholders(args.length) + ")", args);
+	}
 
-			cr.delete(AppInfos.CONTENT_URI, deleteFlt, null);
-			RemoveShortcutsFromWorkspace(infos);
+	/**
+	 * Brings the apps of the packages in sync with the PackageManager. New activities
+	 * are inserted, existing ones updated and vanished ones deleted, all in one
+	 * transaction, followed by a single INTENT_DB_CHANGED for everything.
+	 */
+	public boolean PackagesChanged(String[] packages) {
+		// the queue, reconcile() and the loader may sync the same packages
+		synchronized (sPackagesLock) {
+			return syncPackagesLocked(packages);
 		}
 	}
 
-	public static boolean arrayContains(String[] array, String value) {
-		for (String itm : array) {
-			if (itm.equals(value))
-				return true;
+	/**
+	 * @return false if the apps could not be written, or we got interrupted.
+	 */
+	private boolean syncPackagesLocked(String[] packages) {
+		final PackageManager packageManager = mContext.getPackageManager();
+
+		// what the packages have right now, by component name
+		HashMap<String, ResolveInfo> pmInfos = new HashMap<String, ResolveInfo>();
+		for (String aPackage : packages) {
+			for (ResolveInfo info : findActivitiesForPackage(packageManager, aPackage)) {
+				pmInfos.put(new ComponentName(info.activityInfo.applicationInfo.packageName,
+						info.activityInfo.name).flattenToString(), info);
+			}
 		}
-		return false;
+
+		// what we know about them, by component name
+		HashMap<String, DBInfo> dbInfos = new HashMap<String, DBInfo>();
+		for (String aPackage : packages) {
+			Cursor c = queryAppsFromPackage(
+					new String[] {AppInfos.ID, AppInfos.COMPONENT_NAME, AppInfos.TITLE_CHANGED, AppInfos.ICON_CHANGED},
+					aPackage);
+			if (c == null)
+				continue;
+			try {
+				while (c.moveToNext()) {
+					DBInfo dbi = new DBInfo(c);
+					dbInfos.put(dbi.getComponentName(), dbi);
+				}
+			} finally {
+				c.close();
+			}
+		}
+
+		List<ResolveInfo> addedApps = new ArrayList<ResolveInfo>();
+		List<ResolveInfo> updatedApps = new ArrayList<ResolveInfo>();
+		List<DBInfo> updatedRows = new ArrayList<DBInfo>();
+		List<DBInfo> customizedRows = new ArrayList<DBInfo>();
+		List<DBInfo> removedApps = new ArrayList<DBInfo>();
+		for (Map.Entry<String, ResolveInfo> e : pmInfos.entrySet()) {
+			DBInfo dbi = dbInfos.get(e.getKey());
+			if (dbi == null) {
+				addedApps.add(e.getValue());
+			} else if (!dbi.isTitleChanged() || !dbi.isIconChanged()) {
+				// only refresh what the user didn't customize
+				updatedApps.add(e.getValue());
+				updatedRows.add(dbi);
+			} else {
+				customizedRows.add(dbi);
+			}
+		}
+		for (DBInfo dbi : dbInfos.values()) {
+			if (!pmInfos.containsKey(dbi.getComponentName()))
+				removedApps.add(dbi); // app is no longer installed!
+		}
+
+		// load labels and render icons for new and updated apps at once
+		List<ResolveInfo> toLoad = new ArrayList<ResolveInfo>(addedApps.size() + updatedApps.size());
+		toLoad.addAll(addedApps);
+		toLoad.addAll(updatedApps);
+		ContentValues[] loaded = ResolveInfosToContentValues(mContext, toLoad, true);
+		for (ContentValues values : loaded) {
+			if (values == null)
+				return false; // interrupted, the packages get synced again later
+		}
+
+		ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>();
+		for (int i = 0; i < addedApps.size(); i++) {
+			ops.add(ContentProviderOperation.newInsert(AppInfos.CONTENT_URI)
+					.withValues(loaded[i]).build());
+		}
+		long[] updatedIds = new long[updatedRows.size()];
+		for (int i = 0; i < updatedRows.size(); i++) {
+			DBInfo dbinfo = updatedRows.get(i);
+			ContentValues all = loaded[addedApps.size() + i];
+			ContentValues values = new ContentValues();
+			if (!dbinfo.isTitleChanged()) {
+				values.put(AppInfos.TITLE, all.getAsString(AppInfos.TITLE));
+				values.put(AppInfos.LOCALE, all.getAsString(AppInfos.LOCALE));
+			}
+			if (!dbinfo.isIconChanged()) {
+				values.put(AppInfos.ICON, all.getAsByteArray(AppInfos.ICON));
+			}
+			values.put(AppInfos.VERSION_CODE, all.getAsInteger(AppInfos.VERSION_CODE));
+			values.put(AppInfos.LAST_UPDATED, all.getAsLong(AppInfos.LAST_UPDATED));
+			ops.add(ContentProviderOperation.newUpdate(AppInfos.getContentUri(dbinfo.getId()))
+					.withValues(values).build());
+			updatedIds[i] = dbinfo.getId();
+		}
+		for (DBInfo dbinfo : customizedRows) {
+			// nothing to render, but remember we've seen this version of the package
+			ComponentName cn = ComponentName.unflattenFromString(dbinfo.getComponentName());
+			if (cn == null)
+				continue;
+			ContentValues values = new ContentValues();
+			putFingerprint(values, getPackageInfo(packageManager, cn.getPackageName()));
+			ops.add(ContentProviderOperation.newUpdate(AppInfos.getContentUri(dbinfo.getId()))
+					.withValues(values).build());
+		}
+		for (DBInfo dbinfo : removedApps) {
+			ops.add(ContentProviderOperation.newDelete(
+					AppInfos.getContentUri(dbinfo.getId())).build());
+		}
+		if (ops.isEmpty())
+			return true;
+
+		ContentProviderResult[] results;
+		try {
+			results = mContext.getContentResolver().applyBatch(AppDBProvider.AUTHORITY, ops);
+		} catch (RemoteException e) {
+			Log.w(TAG, "Could not update apps of " + Arrays.toString(packages), e);
+			return false;
+		} catch (OperationApplicationException e) {
+			Log.w(TAG, "Could not update apps of " + Arrays.toString(packages), e);
+			return false;
+		}
+
+		long[] addedIds = new long[addedApps.size()];
+		int added = 0;
+		for (int i = 0; i < addedApps.size(); i++) {
+			if (results[i].uri != null)
+				addedIds[added++] = ContentUris.parseId(results[i].uri);
+		}
+		if (added < addedIds.length) {
+			long[] trimmed = new long[added];
+			System.arraycopy(addedIds, 0, trimmed, 0, added);
+			addedIds = trimmed;
+		}
+
+		if (removedApps.size() > 0) {
+			RemoveShortcutsFromWorkspace(removedApps);
+			forgetLaunchInfos(getPackageNames(removedApps));
+		}
+
+		// Notify Model, once for everything:
+		Intent modelIntent = new Intent(INTENT_DB_CHANGED);
+		if (addedIds.length > 0)
+			modelIntent.putExtra(EXTRA_ADDED, addedIds);
+		if (removedApps.size() > 0)
+			modelIntent.putExtra(EXTRA_DELETED_COMPONENT_NAMES, getPackageNames(removedApps));
+		if (updatedIds.length > 0)
+			modelIntent.putExtra(EXTRA_UPDATED, updatedIds);
+		mContext.sendBroadcast(modelIntent);
+		return true;
 	}
 
-	private static boolean InfosContains(List<DBInfo> infos, String value) {
-		for (DBInfo itm : infos) {
-			if (value.equals(itm.getComponentName()))
-				return true;
+	/**
+	 * Catches up on package changes we missed the broadcasts for, e.g. while the
+	 * process was dead or after a system update.  Only packages whose versionCode or
+	 * last update time differ from what their rows were written with are synced.
+	 */
+	public void reconcile() {
+		final String[] changed = findChangedPackages();
+		if (changed.length > 0)
+			PackagesChanged(changed);
+	}
+
+	/**
+	 * @return the packages {@link #reconcile()} has to sync.
+	 */
+	private String[] findChangedPackages() {
+		final PackageManager packageManager = mContext.getPackageManager();
+
+		// fingerprints of the stored packages, "" if unknown or not the same for all rows
+		HashMap<String, String> stored = new HashMap<String, String>();
+		Cursor c = mContext.getContentResolver().query(AppInfos.CONTENT_URI,
+				new String[] { AppInfos.PACKAGE, AppInfos.VERSION_CODE, AppInfos.LAST_UPDATED },
+				null, null, null);
+		if (c == null)
+			return new String[0];
+		try {
+			while (c.moveToNext()) {
+				String packageName = c.getString(0);
+				if (packageName == null)
+					continue;
+				String fp = c.isNull(1) || c.isNull(2) ? "" : c.getInt(1) + ":" + c.getLong(2);
+				String other = stored.put(packageName, fp);
+				if (other != null && !other.equals(fp))
+					stored.put(packageName, "");
+			}
+		} finally {
+			c.close();
 		}
-		return false;
+
+		HashMap<String, PackageInfo> installed = new HashMap<String, PackageInfo>();
+		for (PackageInfo pi : packageManager.getInstalledPackages(0)) {
+			installed.put(pi.packageName, pi);
+		}
+
+		HashSet<String> changed = new HashSet<String>();
+		for (Map.Entry<String, String> e : stored.entrySet()) {
+			PackageInfo pi = installed.get(e.getKey());
+			if (pi == null) {
+				if (!isOnUnmountedStorage(packageManager, e.getKey()))
+					changed.add(e.getKey());
+			} else if (!e.getValue().equals(pi.versionCode + ":" +
+					Utilities.getLastUpdateTime(pi, null))) {
+				changed.add(e.getKey());
+			}
+		}
+		final Intent mainIntent = new Intent(Intent.ACTION_MAIN, null);
+		mainIntent.addCategory(Intent.CATEGORY_LAUNCHER);
+		for (ResolveInfo info : packageManager.queryIntentActivities(mainIntent, 0)) {
+			String packageName = info.activityInfo.applicationInfo.packageName;
+			if (!stored.containsKey(packageName))
+				changed.add(packageName);
+		}
+
+		if (!changed.isEmpty())
+			Log.i(TAG, "Reconciling " + changed.size() + " changed packages");
+		return changed.toArray(new String[changed.size()]);
 	}
 
-	private static long[] getIds(List<DBInfo> infos) {
-		long[] result = new long[infos.size()];
-		for (int i = 0; i < infos.size(); i++) {
-			result[i] = infos.get(i).getId();
+	/**
+	 * Whether the package is still there, but on an sd card that isn't mounted.  Its
+	 * apps are only hidden then, like on ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE.
+	 */
+	private static boolean isOnUnmountedStorage(PackageManager packageManager, String packageName) {
+		try {
+			ApplicationInfo ai = packageManager.getApplicationInfo(packageName,
+					PackageManager.GET_UNINSTALLED_PACKAGES);
+			return ai.sourceDir != null && !new File(ai.sourceDir).exists();
+		} catch (PackageManager.NameNotFoundException e) {
+			return false;
 		}
-		return result;
+	}
+
+	public static boolean arrayContains(String[] array, String value) {
+		for (String itm : array) {
+			if (itm.equals(value))
+				return true;
+		}
+		return false;
 	}
 
 	private static String[] getPackageNames(List<DBInfo> infos) {
@@ -356,78 +812,47 @@ public class AppDB extends BroadcastReceiver {
 	}
 
 	private void RemoveShortcutsFromWorkspace(List<DBInfo> infos) {
-		final ContentResolver cr = mContext.getContentResolver();
-
-        Cursor c = cr.query(LauncherSettings.Favorites.CONTENT_URI,
-            new String[] { LauncherSettings.Favorites._ID,
-        		LauncherSettings.Favorites.INTENT },
-        		LauncherSettings.Favorites.INTENT + " is not null", null, null);
-        long[] ids = null;
-        try {
-	        if (c != null && c.moveToFirst()) {
-	        	// prepare the dirty work!
-	        	ids = new long[c.getCount()];
-	        	int IDColumnIndex = c.getColumnIndex(LauncherSettings.Favorites._ID);
-	        	int IntentColumnIndex = c.getColumnIndex(LauncherSettings.Favorites.INTENT);
-	        	int idx = 0;
-	        	while (!c.isAfterLast())
-	        	{
-	        		String intentStr = c.getString(IntentColumnIndex);
-	        		try {
-		        		Intent intent = Intent.parseUri(intentStr, 0);
-		        		if (intent != null) {
-
-		        			ComponentName cname = intent.getComponent();
-		        			if (cname != null ) {
-			        			String cnameStr = cname.flattenToString();
-			        			if (InfosContains(infos, cnameStr)) {
-			        				c.getLong(IDColumnIndex);
-			        				ids[idx++] = c.getLong(IDColumnIndex);
-			        			}else
-			        				ids[idx++] = INVALID_ID;
-		        			} else {
-		        				ids[idx++] = INVALID_ID;
-		        			}
-		        		} else
-		        			ids[idx++] = INVALID_ID;
-	        		}
-	        		catch(URISyntaxException expt) {
-	        			ids[idx++] = INVALID_ID;
-	        		}
-
-	        		c.moveToNext();
-	        	}
-	        }
-        } finally {
-        	c.close();
-        }
-        if (ids != null) {
-        	for (long id : ids) {
-        		if (id != INVALID_ID)
-        			cr.delete(LauncherSettings.Favorites.getContentUri(id, false), null, null);
-        	}
-        }
+		final String[] cnames = getPackageNames(infos);
+		// one indexed DELETE per chunk of names, all in one transaction
+		final ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>();
+		for (int start = 0; start < cnames.length; start += MAX_SQL_ARGS) {
+			int end = Math.min(start + MAX_SQL_ARGS, cnames.length);
+			String[] args = new String[end - start];
+			System.arraycopy(cnames, start, args, 0, args.length);
+			ops.add(ContentProviderOperation.newDelete(
+					LauncherSettings.Favorites.CONTENT_URI_NO_NOTIFICATION)
+					.withSelection(LauncherSettings.Favorites.COMPONENT_NAME +
+							" IN (" + getPlaceholders(args.length) + ")", args)
+					.build());
+		}
+		if (ops.isEmpty())
+			return;
+		try {
+			mContext.getContentResolver().applyBatch(LauncherProvider.AUTHORITY, ops);
+		} catch (RemoteException e) {
+			Log.w(TAG, "Could not remove shortcuts", e);
+		} catch (OperationApplicationException e) {
+			Log.w(TAG, "Could not remove shortcuts", e);
+		}
 	}
 
 	private Cursor queryAppsFromPackage(String[] columns, String aPackage) {
-		aPackage = aPackage + PACKAGE_SEPERATOR;
-		String pkgflt = "substr("+AppInfos.COMPONENT_NAME + ",1,"+ aPackage.length() +") = ?";
 		final ContentResolver cr = mContext.getContentResolver();
 		return cr.query(AppInfos.CONTENT_URI,
-				columns, pkgflt, new String[] { aPackage }, null);
+				columns, AppInfos.PACKAGE + "=?", new String[] { aPackage }, null);
 	}
 
-	private static Bitmap getIconFromCursor(Cursor c, int iconIndex) {
-        byte[] data = c.getBlob(iconIndex);
-        try {
-            return BitmapFactory.decodeByteArray(data, 0, data.length);
-        } catch (Exception e) {
-            return null;
-        }
+	private static Bitmap getIconFromCursor(Cursor c, int iconIndex, int hashIndex) {
+        return IconPool.decode(c.getString(hashIndex), c.getBlob(iconIndex));
     }
 
+	/**
+	 * All apps without their icons, see {@link #loadIcons(List)}.  Loading the icon
+	 * blobs of every app up front is slow and may not fit into a CursorWindow.  Loads
+	 * the launch counters of the apps as well.
+	 */
 	public List<ShortcutInfo> getApps() {
-		return getApps(null);
+		return getApps(null, false);
 	}
 
 	private String getAppIdFilter(long[] appIds) {
@@ -444,24 +869,36 @@ public class AppDB extends BroadcastReceiver {
 		return sb.toString();
 	}
 
+	/**
+	 * The given apps with their icons.
+	 */
 	public List<ShortcutInfo> getApps(long[] appIds) {
+		return getApps(appIds, true);
+	}
+
+	private List<ShortcutInfo> getApps(long[] appIds, boolean withIcons) {
 		ArrayList<ShortcutInfo> result = new ArrayList<ShortcutInfo>();
 		ContentResolver cr = mContext.getContentResolver();
 
-		Cursor c = cr.query(AppInfos.CONTENT_URI, new String[] {
+		ArrayList<String> columns = new ArrayList<String>(Arrays.asList(
 		        AppInfos.ID,
 		        AppInfos.COMPONENT_NAME,
-                AppInfos.ICON,
                 AppInfos.ICON_CHANGED,
                 AppInfos.TITLE,
                 AppInfos.TITLE_CHANGED,
 				AppInfos.LAST_LAUNCHED,
-				AppInfos.LAUNCH_COUNT
-		}, getAppIdFilter(appIds), null, null);
+				AppInfos.LAUNCH_COUNT));
+		if (withIcons) {
+			columns.add(AppInfos.ICON);
+			columns.add(AppInfos.ICON_HASH);
+		}
+		Cursor c = cr.query(AppInfos.CONTENT_URI, columns.toArray(new String[columns.size()]),
+				getAppIdFilter(appIds), null, null);
 		try {
 			c.moveToFirst();
             final int idIdx = c.getColumnIndex(AppInfos.ID);
             final int iconIdx = c.getColumnIndex(AppInfos.ICON);
+            final int iconHashIdx = c.getColumnIndex(AppInfos.ICON_HASH);
             final int iconChangedIdx = c.getColumnIndex(AppInfos.ICON_CHANGED);
 			final int cnIdx = c.getColumnIndex(AppInfos.COMPONENT_NAME);
             final int titleIdx = c.getColumnIndex(AppInfos.TITLE);
@@ -470,17 +907,15 @@ public class AppDB extends BroadcastReceiver {
 			final int lastlaunchIdx = c.getColumnIndex(AppInfos.LAST_LAUNCHED);
 
 			while(!c.isAfterLast()) {
-				Bitmap icon = getIconFromCursor(c, iconIdx);
+				Bitmap icon = iconIdx >= 0 ? getIconFromCursor(c, iconIdx, iconHashIdx) : null;
 				String cnStr = c.getString(cnIdx);
 				String title = c.getString(titleIdx);
 
-				if (mLaunchInfos.containsKey(cnStr))
-					mLaunchInfos.remove(cnStr);
-
-				mLaunchInfos.put(cnStr,
-						new LaunchInfo(
-								(int)c.getLong(launchcntIdx),
-								c.getLong(lastlaunchIdx)));
+				synchronized (mLaunchInfos) {
+					putStoredLaunchInfo(cnStr,
+							(int)c.getLong(launchcntIdx),
+							c.getLong(lastlaunchIdx));
+				}
 
 				ComponentName cname = ComponentName.unflattenFromString(cnStr);
 				if (mIconCache != null)
@@ -491,6 +926,12 @@ public class AppDB extends BroadcastReceiver {
 				result.add(info);
 				c.moveToNext();
 			}
+			if (appIds == null) {
+				// read the counters of all apps on the way
+				synchronized (mLaunchInfos) {
+					mLaunchInfosLoaded = true;
+				}
+			}
 		}
 		finally {
 			c.close();
@@ -498,48 +939,238 @@ public class AppDB extends BroadcastReceiver {
 		return result;
 	}
 
-	public void updateLocale(String newLocale) {
-		ContentResolver resolver = mContext.getContentResolver();
-		PackageManager pm = mContext.getPackageManager();
-		// Query all infos with a different locale:
-		final Cursor c = resolver.query(AppInfos.CONTENT_URI,
-				new String[] { AppInfos.ID, AppInfos.COMPONENT_NAME }, AppInfos.LOCALE + " <> ?",
-				new String[] { newLocale }, null);
-		try {
-			if (c.moveToFirst()) {
-				long[] updatedIds = new long[c.getCount()];
-				int idx = 0;
-
-
-				int idCol = c.getColumnIndex(AppInfos.ID);
-				int cnCol = c.getColumnIndex(AppInfos.COMPONENT_NAME);
-
-				while(!c.isAfterLast()) {
-					long id = c.getLong(idCol);
-					ComponentName cn = ComponentName.unflattenFromString(c.getString(cnCol));
-					if (cn != null) {
-				        final Intent mainIntent = new Intent(Intent.ACTION_MAIN, null);
-				        mainIntent.addCategory(Intent.CATEGORY_LAUNCHER);
-				        mainIntent.setComponent(cn);
-				        ResolveInfo ri = pm.resolveActivity(mainIntent, 0);
-
-						ContentValues cv = new ContentValues();
-						String title = ri.loadLabel(pm).toString();
-						cv.put(AppInfos.TITLE, title);
-						cv.put(AppInfos.LOCALE, newLocale);
-						resolver.update(AppInfos.getContentUri(id), cv, null, null);
-						updatedIds[idx++] = id;
+	/**
+	 * Puts the stored icons of the components into the IconCache, with one query.
+	 * Components that are cached already or not in the AppDB are skipped.
+	 */
+	public void loadIcons(List<ComponentName> components) {
+		if (mIconCache == null)
+			return;
+		synchronized (sIconPageLock) {
+			// an other page load might have covered some of them meanwhile
+			ArrayList<String> names = new ArrayList<String>(components.size());
+			for (ComponentName cn : components) {
+				if (!mIconCache.isCached(cn))
+					names.add(cn.flattenToString());
+			}
+			for (int start = 0; start < names.size(); start += MAX_SQL_ARGS) {
+				int end = Math.min(start + MAX_SQL_ARGS, names.size());
+				String[] args = names.subList(start, end).toArray(new String[end - start]);
+				Cursor c = mContext.getContentResolver().query(AppInfos.CONTENT_URI,
+						new String[] { AppInfos.COMPONENT_NAME, AppInfos.TITLE, AppInfos.ICON,
+								AppInfos.ICON_HASH },
+						AppInfos.COMPONENT_NAME + " IN (" + getPlaceholders(args.length) + ")",
+						args, null);
+				if (c == null)
+					continue;
+				try {
+					while (c.moveToNext()) {
+						Bitmap icon = getIconFromCursor(c, 2, 3);
+						ComponentName cname = ComponentName.unflattenFromString(c.getString(0));
+						// without a stored icon the IconCache renders it
+						if (icon != null && cname != null)
+							mIconCache.addToCache(cname, c.getString(1), icon);
 					}
-					c.moveToNext();
+				} finally {
+					c.close();
 				}
+			}
+		}
+	}
+
+	/**
+	 * Renders and stores the icons of the rows that have none yet, e.g. after the
+	 * first boot population.  Works in batches, so the database is never locked for
+	 * long and the drawer shows what's there meanwhile.
+	 */
+	public void fillMissingIcons() {
+		final IconFill fill = new IconFill();
+		while (fillMissingIconsBatch(fill)) {
+			// until every row has been looked at
+		}
+	}
+
+	/**
+	 * Where {@link AppDB#fillMissingIconsBatch(IconFill)} left off.
+	 */
+	private static final class IconFill {
+		long lastId = INVALID_ID;
+		HashMap<String, ResolveInfo> activities;
+	}
 
-				Intent updateIntent = new Intent(INTENT_DB_CHANGED);
-				updateIntent.putExtra(EXTRA_UPDATED, updatedIds);
-				mContext.sendBroadcast(updateIntent);
+	/**
+	 * @return whether there might be more rows without an icon.
+	 */
+	private boolean fillMissingIconsBatch(IconFill fill) {
+		final ContentResolver cr = mContext.getContentResolver();
+		final PackageManager packageManager = mContext.getPackageManager();
+		final ArrayList<Long> ids = new ArrayList<Long>(ICON_FILL_BATCH_SIZE);
+		final ArrayList<String> cnames = new ArrayList<String>(ICON_FILL_BATCH_SIZE);
+		Cursor c = cr.query(AppInfos.CONTENT_URI,
+				new String[] { AppInfos.ID, AppInfos.COMPONENT_NAME },
+				AppInfos.ICON + " IS NULL AND " + AppInfos.ID + ">?",
+				new String[] { String.valueOf(fill.lastId) },
+				AppInfos.ID + " LIMIT " + ICON_FILL_BATCH_SIZE);
+		if (c == null)
+			return false;
+		try {
+			while (c.moveToNext()) {
+				ids.add(c.getLong(0));
+				cnames.add(c.getString(1));
 			}
 		} finally {
 			c.close();
 		}
+		if (ids.isEmpty())
+			return false;
+		// rows whose activity is gone stay without an icon, don't ask for them again
+		fill.lastId = ids.get(ids.size() - 1);
+
+		if (fill.activities == null) {
+			final HashMap<String, ResolveInfo> activities = new HashMap<String, ResolveInfo>();
+			final Intent mainIntent = new Intent(Intent.ACTION_MAIN, null);
+			mainIntent.addCategory(Intent.CATEGORY_LAUNCHER);
+			for (ResolveInfo info : packageManager.queryIntentActivities(mainIntent, 0)) {
+				activities.put(new ComponentName(info.activityInfo.applicationInfo.packageName,
+						info.activityInfo.name).flattenToString(), info);
+			}
+			fill.activities = activities;
+		}
+		final ArrayList<Integer> rows = new ArrayList<Integer>(ids.size());
+		for (int i = 0; i < ids.size(); i++) {
+			if (fill.activities.containsKey(cnames.get(i)))
+				rows.add(i);
+		}
+
+		final HashMap<String, ResolveInfo> resolved = fill.activities;
+		List<byte[]> icons = ParallelMap.map(rows, new ParallelMap.Function<Integer, byte[]>() {
+			public byte[] apply(Integer row) {
+				final String cname = cnames.get(row);
+				final ResolveInfo info = resolved.get(cname);
+				final ComponentName cn = ComponentName.unflattenFromString(cname);
+				Bitmap icon;
+				if (mIconCache != null && mIconCache.isCached(cn)) {
+					// the drawer has rendered it already
+					icon = mIconCache.getIcon(cn, info);
+				} else {
+					icon = Utilities.createIconBitmap(
+							info.activityInfo.loadIcon(packageManager), mContext);
+				}
+				return Utilities.flattenBitmap(icon);
+			}
+		});
+
+		ArrayList<ContentProviderOperation> ops =
+			new ArrayList<ContentProviderOperation>(rows.size());
+		for (int i = 0; i < rows.size(); i++) {
+			if (icons.get(i) == null)
+				continue;
+			// the provider takes no selection on a row uri, so select the id ourselves
+			ops.add(ContentProviderOperation.newUpdate(AppInfos.CONTENT_URI)
+					.withValue(AppInfos.ICON, icons.get(i))
+					// unless the user picked one meanwhile
+					.withSelection(AppInfos.ID + "=? AND " + AppInfos.ICON + " IS NULL",
+							new String[] { String.valueOf(ids.get(rows.get(i))) })
+					.build());
+		}
+		if (ops.isEmpty())
+			return true;
+		try {
+			cr.applyBatch(AppDBProvider.AUTHORITY, ops);
+		} catch (RemoteException e) {
+			Log.w(TAG, "Could not store icons", e);
+			return false;
+		} catch (OperationApplicationException e) {
+			Log.w(TAG, "Could not store icons", e);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Reloads the titles of all apps stored in another locale.  Labels are loaded in
+	 * parallel and written in one transaction, then the model gets a single update for
+	 * all of them.
+	 */
+	public void updateLocale(final String newLocale) {
+		final ContentResolver resolver = mContext.getContentResolver();
+		final PackageManager pm = mContext.getPackageManager();
+		// Query all infos with a different locale:
+		final Cursor c = resolver.query(AppInfos.CONTENT_URI,
+				new String[] { AppInfos.ID, AppInfos.COMPONENT_NAME, AppInfos.TITLE_CHANGED },
+				AppInfos.LOCALE + " <> ?", new String[] { newLocale }, null);
+		if (c == null)
+			return;
+		final List<DBInfo> rows = new ArrayList<DBInfo>(c.getCount());
+		try {
+			while (c.moveToNext()) {
+				rows.add(new DBInfo(c));
+			}
+		} finally {
+			c.close();
+		}
+		if (rows.isEmpty())
+			return;
+
+		final int total = rows.size();
+		List<String> titles = ParallelMap.map(rows, new ParallelMap.Function<DBInfo, String>() {
+			public String apply(DBInfo row) {
+				String title = null;
+				ComponentName cn = ComponentName.unflattenFromString(row.getComponentName());
+				if (cn != null && !row.isTitleChanged()) {
+					final Intent mainIntent = new Intent(Intent.ACTION_MAIN, null);
+					mainIntent.addCategory(Intent.CATEGORY_LAUNCHER);
+					mainIntent.setComponent(cn);
+					// null while the app is being removed or its sd card is unmounted
+					ResolveInfo ri = pm.resolveActivity(mainIntent, 0);
+					if (ri != null) {
+						CharSequence label = ri.loadLabel(pm);
+						title = label != null ? label.toString() : cn.getClassName();
+					}
+				}
+				return title;
+			}
+		});
+
+		ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>(total);
+		long[] updatedIds = new long[total];
+		int updated = 0;
+		for (int i = 0; i < total; i++) {
+			final DBInfo row = rows.get(i);
+			final String title = titles.get(i);
+			if (title == null && !row.isTitleChanged()) {
+				// try again next time
+				continue;
+			}
+			ContentValues cv = new ContentValues();
+			if (title != null)
+				cv.put(AppInfos.TITLE, title);
+			cv.put(AppInfos.LOCALE, newLocale);
+			ops.add(ContentProviderOperation.newUpdate(AppInfos.getContentUri(row.getId()))
+					.withValues(cv).build());
+			if (title != null)
+				updatedIds[updated++] = row.getId();
+		}
+		if (ops.isEmpty())
+			return;
+
+		try {
+			resolver.applyBatch(AppDBProvider.AUTHORITY, ops);
+		} catch (RemoteException e) {
+			Log.w(TAG, "Could not update titles for " + newLocale, e);
+			return;
+		} catch (OperationApplicationException e) {
+			Log.w(TAG, "Could not update titles for " + newLocale, e);
+			return;
+		}
+
+		if (updated > 0) {
+			long[] ids = new long[updated];
+			System.arraycopy(updatedIds, 0, ids, 0, updated);
+			Intent updateIntent = new Intent(INTENT_DB_CHANGED);
+			updateIntent.putExtra(EXTRA_UPDATED, ids);
+			mContext.sendBroadcast(updateIntent);
+		}
 	}
 
 
@@ -552,56 +1183,85 @@ public class AppDB extends BroadcastReceiver {
         return apps != null ? apps : new ArrayList<ResolveInfo>();
     }
 
-    static ContentValues[] ResolveInfosToContentValues(Context context, List<?> infos) {
-    	PackageManager packageManager = context.getPackageManager();
-    	String curLocale = Locale.getDefault().toString();
-    	ContentValues[] result = new ContentValues[infos.size()];
-    	int i = 0;
+    private static PackageInfo getPackageInfo(PackageManager packageManager, String packageName) {
+    	try {
+    		return packageManager.getPackageInfo(packageName, 0);
+    	} catch (PackageManager.NameNotFoundException e) {
+    		return null;
+    	}
+    }
+
+    /**
+     * Stores what {@link #reconcile()} compares against, nothing if pi is null.
+     */
+    private static void putFingerprint(ContentValues values, PackageInfo pi) {
+    	if (pi == null)
+    		return;
+    	values.put(AppInfos.VERSION_CODE, pi.versionCode);
+    	values.put(AppInfos.LAST_UPDATED, Utilities.getLastUpdateTime(pi, null));
+    }
+
+    /**
+     * Loads labels and renders icons of the infos in parallel, the result has the same
+     * order as infos.  Entries are null if the thread got interrupted before them.
+     *
+     * @param withIcons false to leave the icons to {@link #fillMissingIcons()}.
+     */
+    static ContentValues[] ResolveInfosToContentValues(final Context context, List<?> infos,
+    		final boolean withIcons) {
+    	final PackageManager packageManager = context.getPackageManager();
+    	final String curLocale = Locale.getDefault().toString();
+    	final ArrayList<ResolveInfo> resolveInfos = new ArrayList<ResolveInfo>(infos.size());
     	for(Object oinfo : infos) {
-    		final ResolveInfo info;
     		if (oinfo instanceof ResolveInfo)
-    			info = (ResolveInfo)oinfo;
+    			resolveInfos.add((ResolveInfo)oinfo);
     		else if (oinfo instanceof ExtResolveInfo)
-    			info = ((ExtResolveInfo)oinfo).getResolveInfo();
-    		else
-    			continue;
-
-        	ComponentName componentName = new ComponentName(
-                    info.activityInfo.applicationInfo.packageName,
-                    info.activityInfo.name);
-
-        	String title = info.loadLabel(packageManager).toString();
-
-            if (title == null) {
-                title = info.activityInfo.name;
-            }
-            Bitmap icon = Utilities.createIconBitmap(
-                    info.activityInfo.loadIcon(packageManager), context);
-
-            ContentValues values = new ContentValues();
-            values.put(AppInfos.TITLE, title);
-            values.put(AppInfos.LOCALE, curLocale);
-            ItemInfo.writeBitmap(values, icon);
-            values.put(AppInfos.COMPONENT_NAME, componentName.flattenToString());
-			values.put(AppInfos.LAUNCH_COUNT, 0);
-            result[i++] = values;
+    			resolveInfos.add(((ExtResolveInfo)oinfo).getResolveInfo());
+    	}
+    	// fingerprints of the packages, once per package
+    	final HashMap<String, PackageInfo> packageInfos = new HashMap<String, PackageInfo>();
+    	for (ResolveInfo info : resolveInfos) {
+    		String packageName = info.activityInfo.applicationInfo.packageName;
+    		if (!packageInfos.containsKey(packageName))
+    			packageInfos.put(packageName, getPackageInfo(packageManager, packageName));
     	}
-    	return result;
-    }
-
-    private void AddResolveInfos(PackageManager packageManager, List<?> infos) {
-    	ContentResolver cr = mContext.getContentResolver();
 
-    	long[] added = new long[infos.size()];
+    	List<ContentValues> result = ParallelMap.map(resolveInfos,
+    			new ParallelMap.Function<ResolveInfo, ContentValues>() {
+    		public ContentValues apply(ResolveInfo info) {
+    			ComponentName componentName = new ComponentName(
+    					info.activityInfo.applicationInfo.packageName,
+    					info.activityInfo.name);
+
+    			CharSequence label = info.loadLabel(packageManager);
+    			String title = label != null ? label.toString() : info.activityInfo.name;
+
+    			ContentValues values = new ContentValues();
+    			values.put(AppInfos.TITLE, title);
+    			values.put(AppInfos.LOCALE, curLocale);
+    			if (withIcons) {
+    				Bitmap icon = Utilities.createIconBitmap(
+    						info.activityInfo.loadIcon(packageManager), context);
+    				ItemInfo.writeBitmap(values, icon);
+    			}
+    			values.put(AppInfos.COMPONENT_NAME, componentName.flattenToString());
+    			values.put(AppInfos.PACKAGE, componentName.getPackageName());
+    			values.put(AppInfos.LAUNCH_COUNT, 0);
+    			putFingerprint(values, packageInfos.get(componentName.getPackageName()));
+    			return values;
+    		}
+    	});
+    	return result.toArray(new ContentValues[result.size()]);
+    }
 
-    	int i = 0;
-    	for(ContentValues values : ResolveInfosToContentValues(mContext, infos)) {
-    		added[i++] = ContentUris.parseId(cr.insert(AppInfos.CONTENT_URI, values));
+    private static String getPlaceholders(int count) {
+    	StringBuilder sb = new StringBuilder(count * 2);
+    	for (int i = 0; i < count; i++) {
+    		if (i > 0)
+    			sb.append(',');
+    		sb.append('?');
     	}
-
-		Intent updateIntent = new Intent(INTENT_DB_CHANGED);
-		updateIntent.putExtra("added", added);
-		mContext.sendBroadcast(updateIntent);
+    	return sb.toString();
     }
 
     private class ExtResolveInfo {
@@ -658,24 +1318,41 @@ public class AppDB extends BroadcastReceiver {
     }
 
     public static final String APPINFOS = "appinfos";
+    static final String PENDING_PACKAGES = "pending_packages";
+
+    /**
+     * Packages waiting to be synced with the PackageManager, one row per package.
+     */
+    static class PendingPackages {
+    	static final String ID = "_id";
+    	static final String PACKAGE = "package";
+    	// failed syncs of the package so far
+    	static final String ATTEMPTS = "attempts";
+
+    	static final Uri CONTENT_URI = Uri.parse("content://" +
+    			AppDBProvider.AUTHORITY + "/" + PENDING_PACKAGES);
+    }
 
 	public static class AppInfos {
 		public static final String ID = "_id";
 		public static final String COMPONENT_NAME = "componentname";
+		public static final String PACKAGE = "package";
 		public static final String LAUNCH_COUNT = "launchcount";
 		public static final String LAST_LAUNCHED = "lastlaunched";
 		public static final String TITLE = "title";
         public static final String TITLE_CHANGED = "titlechanged";
 		public static final String ICON = "icon";
+		// hash of the icon blob, written by the provider
+		public static final String ICON_HASH = "iconhash";
         public static final String ICON_CHANGED = "iconchanged";
 		public static final String LOCALE = "locale";
+		// fingerprint of the package when the row was written
+		public static final String VERSION_CODE = "versioncode";
+		public static final String LAST_UPDATED = "lastupdated";
 
         static final Uri CONTENT_URI = Uri.parse("content://" +
                 AppDBProvider.AUTHORITY + "/" + APPINFOS);
 
-        static final Uri APP_LAUNCHED_URI = Uri.parse("content://"+
-        		AppDBProvider.AUTHORITY + "/launched");
-
         /**
          * The content:// style URL for a given row, identified by its id.
          *
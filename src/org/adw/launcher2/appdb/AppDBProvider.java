@@ -1,39 +1,53 @@
 package org.adw.launcher2.appdb;
 
-import java.util.List;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 
+import org.adw.launcher2.IconPool;
 import org.adw.launcher2.LauncherProvider.SqlArguments;
 import org.adw.launcher2.appdb.AppDB.AppInfos;
 
+import android.content.ComponentName;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
-import android.content.UriMatcher;
+import android.content.OperationApplicationException;
 import android.content.pm.PackageManager;
 import android.database.Cursor;
-import android.database.MatrixCursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Build;
 import android.text.TextUtils;
+import android.util.Log;
 
 public class AppDBProvider extends ContentProvider {
+	private static final String TAG = "Launcher.AppDBProvider";
 	static final String AUTHORITY = "org.adw.launcher2.appdb";
 
-	private static final UriMatcher URI_MATCHER =
-		new UriMatcher(UriMatcher.NO_MATCH);
-
-	private static final int URI_APP_LAUNCHED = 0;
-
-	static {
-		URI_MATCHER.addURI(AUTHORITY, "launched/*/*", URI_APP_LAUNCHED);
-	}
+	/** Compiled update statements kept around, they are tiny. */
+	private static final int MAX_CACHED_STATEMENTS = 16;
 
 	private SQLiteOpenHelper mOpenHelper;
 
+	// The database stays open for the life of the process, so statements compiled on it
+	// can be reused.  All guarded by mStatements.
+	private final HashMap<String, SQLiteStatement> mStatements =
+		new HashMap<String, SQLiteStatement>();
+	private DatabaseUtils.InsertHelper mInsertHelper;
+	private SQLiteStatement mChanges;
+
 	@Override
 	public int delete(Uri uri, String selection, String[] selectionArgs) {
         SqlArguments args = new SqlArguments(uri, selection, selectionArgs);
@@ -57,7 +71,21 @@ public class AppDBProvider extends ContentProvider {
         SqlArguments args = new SqlArguments(uri);
 
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
-        final long rowId = db.insert(args.table, null, initialValues);
+        final long rowId;
+        if (AppDB.APPINFOS.equals(args.table)) {
+        	// always lock the database before the statements, batches do it that way
+        	db.beginTransaction();
+        	try {
+        		synchronized (mStatements) {
+        			rowId = getInsertHelper(db).insert(withIconHash(initialValues));
+        		}
+        		db.setTransactionSuccessful();
+        	} finally {
+        		db.endTransaction();
+        	}
+        } else {
+        	rowId = db.insert(args.table, null, initialValues);
+        }
         if (rowId <= 0)
         	return null;
 
@@ -68,13 +96,22 @@ public class AppDBProvider extends ContentProvider {
     public int bulkInsert(Uri uri, ContentValues[] values) {
         SqlArguments args = new SqlArguments(uri);
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        db.beginTransaction();
         try {
-        	db.beginTransaction();
-        	DoBulkInsert(db, args.table, values);
+        	if (AppDB.APPINFOS.equals(args.table)) {
+        		synchronized (mStatements) {
+        			DatabaseUtils.InsertHelper helper = getInsertHelper(db);
+        			for (ContentValues row : values) {
+        				if (helper.insert(withIconHash(row)) < 0)
+        					break;
+        			}
+        		}
+        	} else {
+        		DoBulkInsert(db, args.table, values);
+        	}
         	db.setTransactionSuccessful();
         } finally {
         	db.endTransaction();
-        	db.close();
         }
         return values.length;
     }
@@ -96,65 +133,153 @@ public class AppDBProvider extends ContentProvider {
 	@Override
 	public Cursor query(Uri uri, String[] projection, String selection,
 			String[] selectionArgs, String sortOrder) {
-		int match = URI_MATCHER.match(uri);
-        switch (match) {
-                case URI_APP_LAUNCHED: {
-                	// App was launched.
-                	List<String> paths = uri.getPathSegments();
-                	if (paths.size() == 3) {
-                		String cPathName = paths.get(1) + "/" + paths.get(2);
-
-                		SQLiteDatabase db = mOpenHelper.getWritableDatabase();
-                		try {
-                			long curUnixTime = System.currentTimeMillis() / 1000L;
-                			db.execSQL("UPDATE "+AppDB.APPINFOS+" SET "+
-            						AppInfos.LAUNCH_COUNT + "=" + AppInfos.LAUNCH_COUNT + " + 1, " +
-            						AppInfos.LAST_LAUNCHED + " = "+ curUnixTime +
-            						" WHERE substr("+AppInfos.COMPONENT_NAME + ",1,"+ cPathName.length() +") = ?",
-            						new String[] { cPathName.toString() });
-                		} finally {
-                			db.close();
-                		}
-
-                	}
-
-                	/*
-                	 * db.
-                	 */
-
-                	// just return some empty cross process cursor.
-                	return new MatrixCursor(new String[0]);
-                }
-                default: { // Query Data...
-
-			        SqlArguments args = new SqlArguments(uri, selection, selectionArgs);
-			        SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
-			        qb.setTables(args.table);
-
-			        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
-		        	Cursor result = qb.query(db, projection, args.where, args.args, null, null, sortOrder);
-		        	result.setNotificationUri(getContext().getContentResolver(), uri);
-		        	return result;
-		        	// Would love to close the DB here but that would close the cursor too!
-                }
-        }
-	}
+        SqlArguments args = new SqlArguments(uri, selection, selectionArgs);
+        SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
+        qb.setTables(args.table);
 
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        Cursor result = qb.query(db, projection, args.where, args.args, null, null, sortOrder);
+        result.setNotificationUri(getContext().getContentResolver(), uri);
+        return result;
+	}
 
+	/**
+	 * Applies the whole batch in one transaction.
+	 */
+	@Override
+	public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+			throws OperationApplicationException {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+        	ContentProviderResult[] results = super.applyBatch(operations);
+        	db.setTransactionSuccessful();
+        	return results;
+        } finally {
+        	db.endTransaction();
+        }
+	}
 
 	@Override
 	public int update(Uri uri, ContentValues values, String selection,
 			String[] selectionArgs) {
-        SqlArguments args = new SqlArguments(uri, selection, selectionArgs);
-
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        if (AppDB.APPINFOS.equals(uri.getPathSegments().get(0)) && values.size() > 0) {
+        	values = withIconHash(values);
+        	if (uri.getPathSegments().size() == 2) {
+        		// per id update, bind the id so the statement can be reused
+        		final String id = String.valueOf(ContentUris.parseId(uri));
+        		if (TextUtils.isEmpty(selection)) {
+        			return updateCompiled(db, values, AppInfos.ID + "=?", new String[] { id });
+        		}
+        		final int argCount = selectionArgs != null ? selectionArgs.length : 0;
+        		final String[] args = new String[argCount + 1];
+        		args[0] = id;
+        		if (argCount > 0)
+        			System.arraycopy(selectionArgs, 0, args, 1, argCount);
+        		return updateCompiled(db, values,
+        				AppInfos.ID + "=? AND (" + selection + ")", args);
+        	} else if (uri.getPathSegments().size() == 1) {
+        		return updateCompiled(db, values, selection, selectionArgs);
+        	}
+        }
+
+        SqlArguments args = new SqlArguments(uri, selection, selectionArgs);
         return db.update(args.table, values, args.where, args.args);
 	}
 
+	/**
+	 * Runs an update of appinfos through a cached statement for its columns and where
+	 * clause.  Callers need to pass the where values as arguments for this to pay off.
+	 */
+	private int updateCompiled(SQLiteDatabase db, ContentValues values, String where,
+			String[] whereArgs) {
+		final ArrayList<String> columns = new ArrayList<String>(values.size());
+		for (Map.Entry<String, Object> e : values.valueSet()) {
+			columns.add(e.getKey());
+		}
+		Collections.sort(columns);
+
+		final StringBuilder sql = new StringBuilder(128);
+		sql.append("UPDATE ").append(AppDB.APPINFOS).append(" SET ");
+		for (int i = 0; i < columns.size(); i++) {
+			if (i > 0)
+				sql.append(',');
+			sql.append(columns.get(i)).append("=?");
+		}
+		if (!TextUtils.isEmpty(where))
+			sql.append(" WHERE ").append(where);
+		final String key = sql.toString();
+
+		// The transaction locks the database before the statements, like batches do.
+		// It also makes sure changes() is asked on the connection that did the update.
+		db.beginTransaction();
+		try {
+			synchronized (mStatements) {
+				SQLiteStatement statement = mStatements.get(key);
+				if (statement == null) {
+					if (mStatements.size() >= MAX_CACHED_STATEMENTS) {
+						for (SQLiteStatement old : mStatements.values()) {
+							old.close();
+						}
+						mStatements.clear();
+					}
+					statement = db.compileStatement(key);
+					mStatements.put(key, statement);
+				}
+
+				int index = 1;
+				for (String column : columns) {
+					DatabaseUtils.bindObjectToProgram(statement, index++, values.get(column));
+				}
+				if (whereArgs != null) {
+					for (String arg : whereArgs) {
+						statement.bindString(index++, arg);
+					}
+				}
+
+				try {
+					statement.execute();
+					if (mChanges == null)
+						mChanges = db.compileStatement("SELECT changes()");
+					final int count = (int) mChanges.simpleQueryForLong();
+					db.setTransactionSuccessful();
+					return count;
+				} finally {
+					statement.clearBindings();
+				}
+			}
+		} finally {
+			db.endTransaction();
+		}
+	}
+
+	/**
+	 * Icons are hashed once when they are written, readers key the IconPool on the
+	 * stored hash instead of hashing every blob they decode.
+	 */
+	private static ContentValues withIconHash(ContentValues values) {
+		if (!values.containsKey(AppInfos.ICON))
+			return values;
+		final ContentValues result = new ContentValues(values);
+		final byte[] data = values.getAsByteArray(AppInfos.ICON);
+		if (data == null)
+			result.putNull(AppInfos.ICON_HASH);
+		else
+			result.put(AppInfos.ICON_HASH, IconPool.hash(data));
+		return result;
+	}
+
+	private DatabaseUtils.InsertHelper getInsertHelper(SQLiteDatabase db) {
+		if (mInsertHelper == null)
+			mInsertHelper = new DatabaseUtils.InsertHelper(db, AppDB.APPINFOS);
+		return mInsertHelper;
+	}
+
 	private class DatabaseHelper extends SQLiteOpenHelper {
 
 	    private static final String DATABASE_NAME = "apps.db";
-	    private static final int DATABASE_VERSION = 1;
+	    private static final int DATABASE_VERSION = 6;
 
 	    private final Context mContext;
 
@@ -169,22 +294,44 @@ public class AppDBProvider extends ContentProvider {
 			db.execSQL("CREATE TABLE "+AppDB.APPINFOS+" (" +
 					AppDB.AppInfos.ID + " INTEGER PRIMARY KEY," +
 					AppDB.AppInfos.COMPONENT_NAME + " TEXT," +
+					AppDB.AppInfos.PACKAGE + " TEXT," +
                     AppDB.AppInfos.TITLE + " TEXT," +
                     AppDB.AppInfos.TITLE_CHANGED + " BOOLEAN," +
 					AppDB.AppInfos.LOCALE + " TEXT," +
                     AppDB.AppInfos.ICON + " BLOB," +
+                    AppDB.AppInfos.ICON_HASH + " TEXT," +
                     AppDB.AppInfos.ICON_CHANGED + " BOOLEAN," +
 					AppDB.AppInfos.LAUNCH_COUNT + " INTEGER," +
-					AppDB.AppInfos.LAST_LAUNCHED + " INTEGER" +
+					AppDB.AppInfos.LAST_LAUNCHED + " INTEGER," +
+					AppDB.AppInfos.VERSION_CODE + " INTEGER," +
+					AppDB.AppInfos.LAST_UPDATED + " INTEGER" +
                     ");");
 			CreateIndexFor(db, AppDB.APPINFOS, AppDB.AppInfos.COMPONENT_NAME);
+			CreateIndexFor(db, AppDB.APPINFOS, AppDB.AppInfos.PACKAGE);
+			createPendingPackages(db);
 
 			PackageManager packageManager = mContext.getPackageManager();
             final Intent mainIntent = new Intent(Intent.ACTION_MAIN, null);
             mainIntent.addCategory(Intent.CATEGORY_LAUNCHER);
+            // Only labels for now, the loader is waiting for us.  The icons are
+            // rendered in the background by AppDB.fillMissingIcons().
             DoBulkInsert(db, AppDB.APPINFOS,
             	AppDB.ResolveInfosToContentValues(mContext,
-            		packageManager.queryIntentActivities(mainIntent, 0)));
+            		packageManager.queryIntentActivities(mainIntent, 0), false));
+		}
+
+		@Override
+		public void onOpen(SQLiteDatabase db) {
+			if (Build.VERSION.SDK_INT >= 11 && !db.isReadOnly()) {
+				// Readers (the drawer, the launcher model) don't block on the
+				// writers (package changes, launch counters) with a write-ahead log.
+				try {
+					Method enableWal = SQLiteDatabase.class.getMethod("enableWriteAheadLogging");
+					enableWal.invoke(db);
+				} catch (Exception e) {
+					Log.w(TAG, "Could not enable write-ahead logging", e);
+				}
+			}
 		}
 
 		private void CreateIndexFor(SQLiteDatabase db, String table, String column) {
@@ -193,7 +340,137 @@ public class AppDBProvider extends ContentProvider {
 
 		@Override
 		public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-			// TODO Auto-generated method stub
+			int version = oldVersion;
+			if (version < 2) {
+				// Version 2 has an indexed package column instead of substr() filters
+				if (addPackageColumn(db))
+					version = 2;
+			}
+			if (version == 2) {
+				// Version 3 remembers the package fingerprints for AppDB.reconcile(),
+				// they stay empty until it has synced the packages once.
+				if (addFingerprintColumns(db))
+					version = 3;
+			}
+			if (version == 3) {
+				// Version 4 queues package events for AppDB.processPendingPackages()
+				createPendingPackages(db);
+				version = 5;
+			}
+			if (version == 4) {
+				// Version 5 counts failed syncs of the queued packages
+				db.execSQL("ALTER TABLE " + AppDB.PENDING_PACKAGES + " ADD COLUMN " +
+						AppDB.PendingPackages.ATTEMPTS + " INTEGER NOT NULL DEFAULT 0;");
+				version = 5;
+			}
+			if (version == 5) {
+				// Version 6 stores the hash of the icons for the IconPool
+				if (addIconHashColumn(db))
+					version = 6;
+			}
+
+			if (version != DATABASE_VERSION) {
+				// Everything in here can be rebuilt from the PackageManager
+				Log.w(TAG, "Destroying all old data.");
+				db.execSQL("DROP TABLE IF EXISTS " + AppDB.APPINFOS);
+				db.execSQL("DROP TABLE IF EXISTS " + AppDB.PENDING_PACKAGES);
+				onCreate(db);
+			}
+		}
+
+		/**
+		 * Inserting a package that is queued already replaces its row, ids only grow so
+		 * a replaced row never gets the id of the one it replaced.
+		 */
+		private void createPendingPackages(SQLiteDatabase db) {
+			db.execSQL("CREATE TABLE " + AppDB.PENDING_PACKAGES + " (" +
+					AppDB.PendingPackages.ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+					AppDB.PendingPackages.PACKAGE + " TEXT UNIQUE ON CONFLICT REPLACE," +
+					AppDB.PendingPackages.ATTEMPTS + " INTEGER NOT NULL DEFAULT 0" +
+					");");
+		}
+
+		private boolean addFingerprintColumns(SQLiteDatabase db) {
+			db.beginTransaction();
+			try {
+				db.execSQL("ALTER TABLE " + AppDB.APPINFOS + " ADD COLUMN " +
+						AppDB.AppInfos.VERSION_CODE + " INTEGER;");
+				db.execSQL("ALTER TABLE " + AppDB.APPINFOS + " ADD COLUMN " +
+						AppDB.AppInfos.LAST_UPDATED + " INTEGER;");
+				db.setTransactionSuccessful();
+				return true;
+			} catch (SQLException ex) {
+				Log.e(TAG, ex.getMessage(), ex);
+				return false;
+			} finally {
+				db.endTransaction();
+			}
+		}
+
+		private boolean addIconHashColumn(SQLiteDatabase db) {
+			db.beginTransaction();
+			Cursor c = null;
+			SQLiteStatement update = null;
+			try {
+				db.execSQL("ALTER TABLE " + AppDB.APPINFOS + " ADD COLUMN " +
+						AppDB.AppInfos.ICON_HASH + " TEXT;");
+				update = db.compileStatement("UPDATE " + AppDB.APPINFOS + " SET " +
+						AppDB.AppInfos.ICON_HASH + "=? WHERE " + AppDB.AppInfos.ID + "=?");
+				c = db.query(AppDB.APPINFOS,
+						new String[] { AppDB.AppInfos.ID, AppDB.AppInfos.ICON },
+						AppDB.AppInfos.ICON + " IS NOT NULL", null, null, null, null);
+				while (c.moveToNext()) {
+					update.bindString(1, IconPool.hash(c.getBlob(1)));
+					update.bindLong(2, c.getLong(0));
+					update.execute();
+				}
+				db.setTransactionSuccessful();
+				return true;
+			} catch (SQLException ex) {
+				Log.e(TAG, ex.getMessage(), ex);
+				return false;
+			} finally {
+				db.endTransaction();
+				if (update != null)
+					update.close();
+				if (c != null)
+					c.close();
+			}
+		}
+
+		private boolean addPackageColumn(SQLiteDatabase db) {
+			db.beginTransaction();
+			Cursor c = null;
+			SQLiteStatement update = null;
+			try {
+				db.execSQL("ALTER TABLE " + AppDB.APPINFOS + " ADD COLUMN " +
+						AppDB.AppInfos.PACKAGE + " TEXT;");
+				update = db.compileStatement("UPDATE " + AppDB.APPINFOS + " SET " +
+						AppDB.AppInfos.PACKAGE + "=? WHERE " + AppDB.AppInfos.ID + "=?");
+				c = db.query(AppDB.APPINFOS,
+						new String[] { AppDB.AppInfos.ID, AppDB.AppInfos.COMPONENT_NAME },
+						null, null, null, null, null);
+				while (c.moveToNext()) {
+					ComponentName cn = ComponentName.unflattenFromString(c.getString(1));
+					if (cn == null)
+						continue;
+					update.bindString(1, cn.getPackageName());
+					update.bindLong(2, c.getLong(0));
+					update.execute();
+				}
+				CreateIndexFor(db, AppDB.APPINFOS, AppDB.AppInfos.PACKAGE);
+				db.setTransactionSuccessful();
+				return true;
+			} catch (SQLException ex) {
+				Log.e(TAG, ex.getMessage(), ex);
+				return false;
+			} finally {
+				db.endTransaction();
+				if (update != null)
+					update.close();
+				if (c != null)
+					c.close();
+			}
 		}
 	}
 }
@@ -1,12 +1,28 @@
 package org.adw.launcher2.appdb;
 
+/**
+ * Launch counter of an app.  The in-memory value is authoritative, launches are
+ * written to the database later in batches.  Guarded by the map that holds it.
+ */
 final class LaunchInfo {
 
-	int mLaunchCount = -1;
+	int mLaunchCount = 0;
 	long mLastLaunched = 0;
+	// launches not written to the database yet
+	int mPending = 0;
+	// whether mLaunchCount includes the count stored in the database
+	boolean mStored = false;
+
+	/**
+	 * For an app launched before its stored counter was read.
+	 */
+	public LaunchInfo() {
+	}
 
 	public LaunchInfo(int launchCount, long lastLaunched) {
 		mLaunchCount = launchCount;
+		mLastLaunched = lastLaunched;
+		mStored = true;
 	}
 
 	public int getCount() {
@@ -17,9 +33,35 @@ final class LaunchInfo {
 		return mLastLaunched;
 	}
 
+	public boolean isStored() {
+		return mStored;
+	}
+
+	public int getPending() {
+		return mPending;
+	}
 
 	public void launched() {
 		mLastLaunched = System.currentTimeMillis() / 1000L;
 		mLaunchCount++;
+		mPending++;
+	}
+
+	/**
+	 * Add the counter read from the database, unless we already did.
+	 */
+	public void stored(int launchCount, long lastLaunched) {
+		if (mStored)
+			return;
+		mLaunchCount += launchCount;
+		mLastLaunched = Math.max(mLastLaunched, lastLaunched);
+		mStored = true;
+	}
+
+	/**
+	 * The given number of launches have been written to the database.
+	 */
+	public void written(int launches) {
+		mPending = Math.max(0, mPending - launches);
 	}
 }
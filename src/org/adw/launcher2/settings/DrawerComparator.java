@@ -0,0 +1,132 @@
+package org.adw.launcher2.settings;
+
+import java.text.CollationKey;
+import java.text.Collator;
+import java.util.Comparator;
+import java.util.List;
+import java.util.WeakHashMap;
+
+import org.adw.launcher2.IconCache;
+import org.adw.launcher2.IconItemInfo;
+import org.adw.launcher2.ShortcutInfo;
+import org.adw.launcher2.appdb.AppDB;
+
+/**
+ * Drawer sort order that compares precomputed keys.
+ *
+ * Call {@link #prepare(List)} with the items before sorting or searching them, it only
+ * recomputes the keys of items that are new or changed.  {@link #compare} then just
+ * compares the stored keys and never loads titles or touches the database for items
+ * that were prepared.  Only use from the UI thread.
+ */
+public abstract class DrawerComparator<K> implements Comparator<IconItemInfo> {
+
+    private final WeakHashMap<IconItemInfo, K> mKeys = new WeakHashMap<IconItemInfo, K>();
+
+    /**
+     * Make sure every item has an up to date key.
+     */
+    public void prepare(List<? extends IconItemInfo> items) {
+        final int count = items.size();
+        for (int i = 0; i < count; i++) {
+            final IconItemInfo item = items.get(i);
+            final K key = mKeys.get(item);
+            final K fresh = updateKey(item, key);
+            if (fresh != key)
+                mKeys.put(item, fresh);
+        }
+    }
+
+    public final int compare(IconItemInfo a, IconItemInfo b) {
+        return compareKeys(getKey(a), getKey(b));
+    }
+
+    private K getKey(IconItemInfo item) {
+        K key = mKeys.get(item);
+        if (key == null) {
+            // not prepared, should not happen
+            key = updateKey(item, null);
+            mKeys.put(item, key);
+        }
+        return key;
+    }
+
+    /**
+     * @param old the current key of the item, null if there is none.
+     * @return old if it is still valid, otherwise a new key.
+     */
+    protected abstract K updateKey(IconItemInfo item, K old);
+
+    protected abstract int compareKeys(K a, K b);
+
+    /**
+     * Alphabetical order by title, items whose title isn't loaded yet go last until the
+     * next {@link #prepare(List)}.
+     */
+    static class ByName extends DrawerComparator<ByName.Key> {
+        static final class Key {
+            // null if the title isn't loaded yet
+            final String title;
+            final CollationKey collationKey;
+
+            Key(String title, CollationKey collationKey) {
+                this.title = title;
+                this.collationKey = collationKey;
+            }
+        }
+
+        private final IconCache mIconCache;
+        private final Collator mCollator = Collator.getInstance();
+
+        ByName(IconCache iconCache) {
+            mIconCache = iconCache;
+        }
+
+        @Override
+        protected Key updateKey(IconItemInfo item, Key old) {
+            final CharSequence title = item.getTitle(mIconCache);
+            final String str = title != null ? title.toString() : null;
+            if (old != null && (str == null ? old.title == null : str.equals(old.title)))
+                return old;
+            return new Key(str, str != null ? mCollator.getCollationKey(str) : null);
+        }
+
+        @Override
+        protected int compareKeys(Key a, Key b) {
+            if (a.collationKey == null)
+                return b.collationKey == null ? 0 : 1;
+            if (b.collationKey == null)
+                return -1;
+            return a.collationKey.compareTo(b.collationKey);
+        }
+    }
+
+    /**
+     * Most launched first.  The counters are in memory already, the loader reads them
+     * with the apps, so this doesn't query the database on the UI thread.
+     */
+    static class ByLaunchCount extends DrawerComparator<Integer> {
+        private final AppDB mAppDB;
+
+        ByLaunchCount(AppDB appDB) {
+            mAppDB = appDB;
+        }
+
+        @Override
+        protected Integer updateKey(IconItemInfo item, Integer old) {
+            int count = Integer.MAX_VALUE;
+            if (item instanceof ShortcutInfo)
+                count = mAppDB.getLaunchCounter((ShortcutInfo) item);
+            if (old != null && old.intValue() == count)
+                return old;
+            return Integer.valueOf(count);
+        }
+
+        @Override
+        protected int compareKeys(Integer a, Integer b) {
+            final int valA = a.intValue();
+            final int valB = b.intValue();
+            return valB < valA ? -1 : (valB == valA ? 0 : 1);
+        }
+    }
+}
@@ -218,5 +218,18 @@ public class LauncherSettings {
          * @see android.provider.LiveFolders#DISPLAY_MODE_LIST
          */
         public static final String DISPLAY_MODE = "displayMode";
+
+        /**
+         * The content hash of the icon bitmap, which is stored once per hash in the
+         * icons table.  Set by the provider from {@link #ICON} on writes.
+         * <P>Type: TEXT</P>
+         */
+        public static final String ICON_HASH = "iconHash";
+
+        /**
+         * The flattened component name of {@link #INTENT}, kept by the provider.
+         * <P>Type: TEXT</P>
+         */
+        public static final String COMPONENT_NAME = "componentName";
     }
 }
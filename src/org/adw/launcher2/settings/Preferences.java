@@ -1,15 +1,9 @@
 package org.adw.launcher2.settings;
 
 import java.net.URISyntaxException;
-import java.text.Collator;
-import java.util.Comparator;
 
-import org.adw.launcher2.IconCache;
-import org.adw.launcher2.IconItemInfo;
 import org.adw.launcher2.Launcher;
 import org.adw.launcher2.R;
-import org.adw.launcher2.ShortcutInfo;
-import org.adw.launcher2.appdb.AppDB;
 
 import android.content.Intent;
 import android.content.SharedPreferences;
@@ -76,36 +70,20 @@ public class Preferences implements OnSharedPreferenceChangeListener {
 	private static final int SORT_BY_NAME = 1;
 	private static final int SORT_BY_LAUNCH_COUNT = 2;
 
-    private Comparator<IconItemInfo> mCurrentComparator = null;
-
-    private Comparator<IconItemInfo> getAppNameComparator() {
-		final IconCache myIconCache = mLauncher.getIconCache();
-		final Collator sCollator = Collator.getInstance();
-		return new Comparator<IconItemInfo>() {
-			@Override
-    		public final int compare(IconItemInfo a, IconItemInfo b) {
-    			return sCollator.compare(a.getTitle(myIconCache), b.getTitle(myIconCache));
-    		}
-    	};
+    private DrawerComparator<?> mCurrentComparator = null;
+
+    private DrawerComparator<?> getAppNameComparator() {
+		return new DrawerComparator.ByName(mLauncher.getIconCache());
     }
 
-    private Comparator<IconItemInfo> getLaunchCountComparator() {
-		final AppDB myAppDB = mLauncher.getAppDB();
-		return new Comparator<IconItemInfo>() {
-			@Override
-			public int compare(IconItemInfo a, IconItemInfo b) {
-				int valA = Integer.MAX_VALUE;
-				int valB = Integer.MAX_VALUE;
-				if (a instanceof ShortcutInfo)
-					valA = myAppDB.getLaunchCounter((ShortcutInfo)a);
-				if (b instanceof ShortcutInfo)
-					valB = myAppDB.getLaunchCounter((ShortcutInfo)b);
-				return valB - valA;
-			}
-		};
+    private DrawerComparator<?> getLaunchCountComparator() {
+		return new DrawerComparator.ByLaunchCount(mLauncher.getAppDB());
     }
 
-    public Comparator<IconItemInfo> getCurrentDrawerComparator() {
+    /**
+     * Call {@link DrawerComparator#prepare} with the items before sorting them.
+     */
+    public DrawerComparator<?> getCurrentDrawerComparator() {
     	if (mCurrentComparator == null) {
 	    	int currentMode = Integer.parseInt(mPreferences.getString(PREF_CURRENT_DRAWER_SORT_ORDER,
 	    			String.valueOf(SORT_BY_NAME)));